@@ -0,0 +1,48 @@
+package org.digitalmodular.qoiflow;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Output that writes to an existing buffer, which can be a heap, direct or memory-mapped buffer.
+ * <p>
+ * The buffer must have enough space for the entire stream, or a {@link java.nio.BufferOverflowException} is thrown.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-28
+public class QoiFlowByteBufferOutput implements QoiFlowOutput {
+	private final ByteBuffer buffer;
+	private final int        startPosition;
+
+	public QoiFlowByteBufferOutput(ByteBuffer buffer) {
+		this.buffer = Objects.requireNonNull(buffer, "'buffer' can't be null");
+		startPosition = buffer.position();
+	}
+
+	@Override
+	public void put(byte value) {
+		buffer.put(value);
+	}
+
+	@Override
+	public void put(byte[] src, int offset, int length) {
+		buffer.put(src, offset, length);
+	}
+
+	/**
+	 * Writes the bytes one at a time, as the stream is big-endian regardless of the order of the buffer.
+	 */
+	@Override
+	public void putInt(int value) {
+		buffer.put((byte)(value >> 24));
+		buffer.put((byte)(value >> 16));
+		buffer.put((byte)(value >> 8));
+		buffer.put((byte)value);
+	}
+
+	@Override
+	public long size() {
+		return buffer.position() - startPosition;
+	}
+}
@@ -0,0 +1,90 @@
+package org.digitalmodular.qoiflow;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+import static org.digitalmodular.util.Validators.requireAtLeast;
+
+/**
+ * Output that writes to a channel through a small fixed-size buffer, which is flushed whenever it's full.
+ * <p>
+ * Memory use is constant, regardless of the size of the image.
+ * <p>
+ * Because the codec can't handle checked exceptions, I/O errors during writing are thrown as
+ * {@link UncheckedIOException}. Don't forget to call {@link #flush()} after encoding.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-27
+public class QoiFlowChannelOutput implements QoiFlowOutput, Flushable {
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer          buffer;
+
+	private long flushedSize = 0;
+
+	public QoiFlowChannelOutput(WritableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	public QoiFlowChannelOutput(WritableByteChannel channel, int bufferSize) {
+		this.channel = Objects.requireNonNull(channel, "'channel' can't be null");
+		buffer = ByteBuffer.allocateDirect(requireAtLeast(1, bufferSize, "bufferSize"));
+	}
+
+	@Override
+	public void put(byte value) {
+		if (!buffer.hasRemaining()) {
+			drainUnchecked();
+		}
+
+		buffer.put(value);
+	}
+
+	@Override
+	public void put(byte[] src, int offset, int length) {
+		while (length > 0) {
+			if (!buffer.hasRemaining()) {
+				drainUnchecked();
+			}
+
+			int chunkLength = Math.min(length, buffer.remaining());
+			buffer.put(src, offset, chunkLength);
+			offset += chunkLength;
+			length -= chunkLength;
+		}
+	}
+
+	@Override
+	public long size() {
+		return flushedSize + buffer.position();
+	}
+
+	/**
+	 * Writes all buffered bytes to the channel.
+	 */
+	@Override
+	public void flush() throws IOException {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				flushedSize += channel.write(buffer);
+			}
+		} finally {
+			buffer.compact();
+		}
+	}
+
+	private void drainUnchecked() {
+		try {
+			flush();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package org.digitalmodular.qoiflow;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe cache of prepared codecs, keyed by their configuration.
+ * <p>
+ * Codecs are immutable and hold no encoding/decoding state, so every cached codec can be used by any number of
+ * threads at once. Don't set statistics on them, as that would affect every user.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-30
+public class QoiFlowCodecCache {
+	private final Map<QoiFlowCodecDescriptor, QoiFlowStreamCodec> codecs = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the codec with the given configuration, creating it if it's not cached yet.
+	 *
+	 * @throws IllegalArgumentException when the configuration is invalid.
+	 */
+	public QoiFlowStreamCodec get(QoiFlowCodecDescriptor descriptor) {
+		Objects.requireNonNull(descriptor, "descriptor");
+
+		return codecs.computeIfAbsent(descriptor, QoiFlowCodecDescriptor::createCodec);
+	}
+
+	public void clear() {
+		codecs.clear();
+	}
+}
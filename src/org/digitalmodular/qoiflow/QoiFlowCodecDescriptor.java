@@ -0,0 +1,256 @@
+package org.digitalmodular.qoiflow;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionChroma;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionColorHistory;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionDelta;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionMaskRGBA;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionRGBA;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionRunLength;
+import org.digitalmodular.util.HexUtilities;
+
+/**
+ * Compact, immutable description of a codec configuration, as stored in the header of a stream.
+ * <p>
+ * Equal descriptors create identically configured codecs, so they can be used as cache keys.
+ * <p>
+ * Serialized format:
+ * <pre>
+ * byte numInstructions
+ * per instruction:
+ *     byte type
+ *     DELTA, CHROMA, RGBA: byte bitsR << 4 | bitsG, byte bitsB << 4 | bitsA
+ *     MASK:                byte hasAlpha
+ * per variable-length instruction except the last:
+ *     byte variableLength
+ * </pre>
+ *
+ * @author Mark Jeronimus
+ * @see QoiFlowCodecCache
+ */
+// Created 2022-06-30
+public final class QoiFlowCodecDescriptor {
+	/** The largest possible serialized size: 255 instructions with 3 bytes each, and 254 variable lengths */
+	public static final int MAX_SIZE = 1 + 255 * 3 + 254;
+
+	private static final int TYPE_RLE    = 0;
+	private static final int TYPE_HIST   = 1;
+	private static final int TYPE_DELTA  = 2;
+	private static final int TYPE_CHROMA = 3;
+	private static final int TYPE_RGBA   = 4;
+	private static final int TYPE_MASK   = 5;
+
+	private final byte[] data;
+	/** The variable lengths are the last bytes of the data */
+	private final int    numVariableLengths;
+
+	private QoiFlowCodecDescriptor(byte[] data, int numVariableLengths) {
+		this.data = data;
+		this.numVariableLengths = numVariableLengths;
+	}
+
+	/**
+	 * Creates the descriptor of the current configuration of the codec.
+	 *
+	 * @throws IllegalArgumentException when the codec contains instructions that can't be serialized.
+	 */
+	public static QoiFlowCodecDescriptor of(QoiFlowStreamCodec codec) {
+		QoiFlowGrowableOutput dst = new QoiFlowGrowableOutput(32);
+
+		dst.put((byte)codec.instructions().size());
+		for (QoiFlowInstruction instruction : codec.instructions()) {
+			// Exact classes only, as subclasses might encode differently, and would decode as their parent.
+			Class<?> type = instruction.getClass();
+			if (type == QoiFlowInstructionRunLength.class) {
+				dst.put((byte)TYPE_RLE);
+			} else if (type == QoiFlowInstructionColorHistory.class) {
+				dst.put((byte)TYPE_HIST);
+			} else if (type == QoiFlowInstructionDelta.class) {
+				dst.put((byte)TYPE_DELTA);
+				putBits(instruction, dst);
+			} else if (type == QoiFlowInstructionChroma.class) {
+				dst.put((byte)TYPE_CHROMA);
+				putBits(instruction, dst);
+			} else if (type == QoiFlowInstructionRGBA.class) {
+				dst.put((byte)TYPE_RGBA);
+				putBits(instruction, dst);
+			} else if (type == QoiFlowInstructionMaskRGBA.class) {
+				dst.put((byte)TYPE_MASK);
+				dst.put((byte)(instruction.hasAlpha() ? 1 : 0));
+			} else {
+				throw new IllegalArgumentException("Instruction can't be serialized: " + type);
+			}
+		}
+
+		for (int i = 0; i < codec.getNumVariableLengths(); i++) {
+			dst.put((byte)codec.getVariableLength(i));
+		}
+
+		return new QoiFlowCodecDescriptor(dst.toByteArray(), codec.getNumVariableLengths());
+	}
+
+	private static void putBits(QoiFlowInstruction instruction, QoiFlowOutput dst) {
+		dst.put((byte)(instruction.getBitsR() << 4 | instruction.getBitsG()));
+		dst.put((byte)(instruction.getBitsB() << 4 | instruction.getBitsA()));
+	}
+
+	/**
+	 * Reads a descriptor from the current position of the buffer.
+	 * <p>
+	 * This only checks the structure. Invalid parameters are detected by {@link #createCodec()}.
+	 */
+	public static QoiFlowCodecDescriptor read(ByteBuffer src) throws IOException {
+		int start                   = src.position();
+		int numVariableInstructions = 0;
+
+		try {
+			int numInstructions = src.get() & 0xFF;
+
+			for (int i = 0; i < numInstructions; i++) {
+				int type = src.get() & 0xFF;
+				switch (type) {
+					case TYPE_RLE:
+					case TYPE_HIST:
+						numVariableInstructions++;
+						break;
+					case TYPE_DELTA:
+					case TYPE_CHROMA:
+					case TYPE_RGBA:
+						src.get();
+						src.get();
+						break;
+					case TYPE_MASK:
+						src.get();
+						break;
+					default:
+						throw new IOException("Bad instruction type: " + HexUtilities.hexByteToString(type));
+				}
+			}
+
+			for (int i = 1; i < numVariableInstructions; i++) {
+				src.get();
+			}
+		} catch (BufferUnderflowException ignored) {
+			throw new IOException("Truncated instruction table");
+		}
+
+		byte[] data = new byte[src.position() - start];
+		src.get(start, data);
+		return new QoiFlowCodecDescriptor(data, Math.max(0, numVariableInstructions - 1));
+	}
+
+	/**
+	 * Returns the serialized size, in bytes.
+	 */
+	public int size() {
+		return data.length;
+	}
+
+	public void write(QoiFlowOutput dst) {
+		dst.put(data, 0, data.length);
+	}
+
+	/**
+	 * Creates a new codec with this configuration.
+	 *
+	 * @throws IllegalArgumentException when the configuration is invalid.
+	 */
+	public QoiFlowStreamCodec createCodec() {
+		ByteBuffer               src          = ByteBuffer.wrap(data);
+		List<QoiFlowInstruction> instructions = createInstructions(src);
+
+		// The variable lengths are the rest of the data.
+		int[] variableLengths = new int[src.remaining()];
+		for (int i = 0; i < variableLengths.length; i++) {
+			variableLengths[i] = src.get() & 0xFF;
+		}
+
+		return new QoiFlowStreamCodec(instructions, variableLengths);
+	}
+
+	/**
+	 * Creates a new codec with the instructions of this configuration, and other variable lengths.
+	 */
+	QoiFlowStreamCodec createCodec(int[] variableLengths) {
+		return new QoiFlowStreamCodec(createInstructions(ByteBuffer.wrap(data)), variableLengths);
+	}
+
+	private static List<QoiFlowInstruction> createInstructions(ByteBuffer src) {
+		int                      numInstructions = src.get() & 0xFF;
+		List<QoiFlowInstruction> instructions    = new ArrayList<>(numInstructions);
+		for (int i = 0; i < numInstructions; i++) {
+			int type = src.get() & 0xFF;
+			switch (type) {
+				case TYPE_RLE:
+					instructions.add(new QoiFlowInstructionRunLength());
+					break;
+				case TYPE_HIST:
+					instructions.add(new QoiFlowInstructionColorHistory());
+					break;
+				case TYPE_DELTA: {
+					int bitsRG = src.get() & 0xFF;
+					int bitsBA = src.get() & 0xFF;
+					instructions.add(new QoiFlowInstructionDelta(bitsRG >> 4, bitsRG & 0xF, bitsBA >> 4, bitsBA & 0xF));
+					break;
+				}
+				case TYPE_CHROMA: {
+					int bitsRG = src.get() & 0xFF;
+					int bitsBA = src.get() & 0xFF;
+					instructions.add(new QoiFlowInstructionChroma(
+							bitsRG >> 4, bitsRG & 0xF, bitsBA >> 4, bitsBA & 0xF));
+					break;
+				}
+				case TYPE_RGBA: {
+					int bitsRG = src.get() & 0xFF;
+					int bitsBA = src.get() & 0xFF;
+					instructions.add(new QoiFlowInstructionRGBA(bitsRG >> 4, bitsRG & 0xF, bitsBA >> 4, bitsBA & 0xF));
+					break;
+				}
+				case TYPE_MASK:
+					instructions.add(new QoiFlowInstructionMaskRGBA(src.get() != 0));
+					break;
+				default:
+					throw new AssertionError("Bad instruction type: " + type);
+			}
+		}
+
+		return instructions;
+	}
+
+	/**
+	 * Tells whether both configurations have the same instructions, regardless of the variable lengths.
+	 */
+	public boolean hasSameInstructions(QoiFlowCodecDescriptor other) {
+		int length = data.length - numVariableLengths;
+		return other.data.length - other.numVariableLengths == length &&
+		       Arrays.equals(data, 0, length, other.data, 0, length);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		} else if (!(o instanceof QoiFlowCodecDescriptor)) {
+			return false;
+		}
+
+		return Arrays.equals(data, ((QoiFlowCodecDescriptor)o).data);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(data);
+	}
+
+	@Override
+	public String toString() {
+		return HexUtilities.hexArrayToString(data, data.length);
+	}
+}
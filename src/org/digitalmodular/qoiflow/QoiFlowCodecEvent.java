@@ -0,0 +1,86 @@
+package org.digitalmodular.qoiflow;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * The fields shared by the Java Flight Recorder events of the encoder and decoder.
+ * <p>
+ * When the event isn't enabled in the recording, this costs next to nothing.
+ * The instruction counts are only filled in when the codec has statistics
+ * (see {@link QoiFlowStreamCodec#setStatistics(QoiFlowStatistics)}).
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-07-02
+@Category("QOIFlow")
+abstract class QoiFlowCodecEvent extends Event {
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+
+	@Label("Component Format")
+	@Description("The number of bits used per component")
+	String componentFormat;
+
+	@Label("Compressed Size")
+	@DataAmount
+	long compressedSize;
+
+	@Label("Throughput")
+	@Description("In megapixels per second")
+	double megapixelsPerSecond;
+
+	@Label("Instruction Counts")
+	@Description("The number of times each instruction was used, if the codec has statistics")
+	String instructionCounts;
+
+	private transient long              startNanos;
+	private transient QoiFlowStatistics statistics;
+	private transient long[]            startInstructionCounts;
+
+	void start() {
+		begin();
+
+		if (isEnabled()) {
+			startNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Remembers the counts of the statistics (if any) to report the difference of at the end.
+	 */
+	void startCounting(QoiFlowStreamCodec codec) {
+		if (isEnabled() && codec.getStatistics() != null) {
+			statistics = codec.getStatistics();
+			startInstructionCounts = statistics.getInstructionCounts();
+		}
+	}
+
+	void finish(QoiFlowHeader header, long compressedSize) {
+		end();
+
+		if (!shouldCommit()) {
+			return;
+		}
+
+		width = header.width();
+		height = header.height();
+		componentFormat = header.componentFormat().toString();
+		this.compressedSize = compressedSize;
+
+		long nanos = System.nanoTime() - startNanos;
+		megapixelsPerSecond = nanos > 0 ? (double)width * height / nanos * 1.0e3 : 0;
+
+		if (statistics != null) {
+			instructionCounts = statistics.formatInstructionCountsSince(startInstructionCounts);
+		}
+
+		commit();
+	}
+}
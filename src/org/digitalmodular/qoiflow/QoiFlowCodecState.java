@@ -0,0 +1,303 @@
+package org.digitalmodular.qoiflow;
+
+import java.nio.ByteBuffer;
+
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
+
+/**
+ * The encoding/decoding state of one stream, created by {@link QoiFlowStreamCodec#newState()}.
+ * <p>
+ * This is not thread-safe, and can't be reused for another stream.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-07-01
+public final class QoiFlowCodecState {
+	private final QoiFlowStreamCodec   codec;
+	private final QoiFlowInstruction[] instructions;
+
+	// Instruction dispatch tables, see QoiFlowInstructionDispatch
+	private final int[]   kinds;
+	private final int[]   preEncoders;
+	private final int[]   postEncoders;
+	private final int[]   postDecoders;
+	private final boolean canSkipRuns;
+
+	// Code dispatch table
+	private final QoiFlowInstruction[] instructionsByCode = new QoiFlowInstruction[256];
+	private final int[]                kindsByCode        = new int[256];
+	private final int[]                localCodes;
+
+	// Codec state during encoding/decoding (prevent rapid allocation/de-allocation)
+	private int previousColor = QoiFlowStreamCodec.START_COLOR.toRGBA();
+
+	// Temporary state (prevent rapid allocation/de-allocation)
+	private final byte[] buffer;
+
+	// Tracing, only when the codec has a trace recorder
+	private final QoiFlowTraceRecorder.StreamTrace trace;
+	private final int[]                            instructionIndicesByCode;
+	private final TracingOutput                    tracingOutput;
+
+	QoiFlowCodecState(QoiFlowStreamCodec codec,
+	                  QoiFlowInstruction[] instructions,
+	                  QoiFlowInstructionDispatch dispatch,
+	                  int[] instructionIndicesByCode,
+	                  int[] localCodes) {
+		this.codec = codec;
+		this.instructions = instructions;
+		this.localCodes = localCodes;
+
+		kinds = dispatch.kinds;
+		preEncoders = dispatch.preEncoders;
+		postEncoders = dispatch.postEncoders;
+		postDecoders = dispatch.postDecoders;
+		canSkipRuns = dispatch.canSkipRuns;
+
+		for (int code = 0; code < 256; code++) {
+			instructionsByCode[code] = instructions[instructionIndicesByCode[code]];
+			kindsByCode[code] = kinds[instructionIndicesByCode[code]];
+		}
+
+		buffer = new byte[codec.getMaxInstructionSize()];
+
+		QoiFlowTraceRecorder traceRecorder = codec.getTraceRecorder();
+		this.instructionIndicesByCode = instructionIndicesByCode;
+		if (traceRecorder != null) {
+			trace = traceRecorder.beginStream(instructions, codec.getMaxInstructionSize());
+			tracingOutput = new TracingOutput();
+		} else {
+			trace = null;
+			tracingOutput = null;
+		}
+	}
+
+	public QoiFlowStreamCodec getCodec() {
+		return codec;
+	}
+
+	public void encode(QoiFlowColor color, QoiFlowOutput dst) {
+		encode(color.toRGBA(), dst);
+	}
+
+	/**
+	 * Encodes one pixel without allocating anything.
+	 *
+	 * @param color The color to encode, packed as {@code 0xRRGGBBAA}
+	 * @see QoiFlowColor#packRGBA(int, int, int, int)
+	 */
+	public void encode(int color, QoiFlowOutput dst) {
+		if (trace != null) {
+			encodeTraced(color, dst);
+			return;
+		}
+
+		preEncode(previousColor, color, dst);
+		mainEncode(previousColor, color, dst);
+
+		previousColor = color;
+	}
+
+	/**
+	 * Encodes {@code count} more pixels with the same color as the last encoded pixel.
+	 * <p>
+	 * This produces the same output as calling {@link #encode(int, QoiFlowOutput)} {@code count} times,
+	 * but when repeats go straight to a run-length instruction, the whole run is handed to it at once.
+	 */
+	public void encodeRepeats(int count, QoiFlowOutput dst) {
+		if (canSkipRuns) {
+			QoiFlowInstructionDispatch.encodeRepeats(instructions[0], previousColor, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				encode(previousColor, dst);
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #preEncode(int, int, QoiFlowOutput)} and {@link #mainEncode(int, int, QoiFlowOutput)}, but tells
+	 * the tracing output which instruction is about to encode, so it doesn't have to look it up.
+	 * <p>
+	 * Deferred instructions emitted by {@code preEncode()} encode the previous color.
+	 */
+	private void encodeTraced(int color, QoiFlowOutput dst) {
+		tracingOutput.dst = dst;
+
+		tracingOutput.color = previousColor;
+		for (int i = 0; i < instructions.length; i++) {
+			tracingOutput.slot = i;
+			instructions[i].preEncode(previousColor, color, tracingOutput);
+		}
+
+		tracingOutput.color = color;
+		mainEncodeTraced(previousColor, color);
+
+		previousColor = color;
+	}
+
+	private void mainEncodeTraced(int previous, int color) {
+		for (int i = 0; i < instructions.length; i++) {
+			tracingOutput.slot = i;
+			int numBytes = instructions[i].encode(previous, color, buffer);
+			if (numBytes > 0) {
+				tracingOutput.putInstruction(instructions[i], buffer, 0, numBytes);
+				return;
+			} else if (numBytes == 0) {
+				return;
+			}
+		}
+
+		throw new AssertionError("None of the instructions could encode: " + QoiFlowColor.fromRGBA(color));
+	}
+
+	/**
+	 * Give instructions the opportunity to emit deferred data based on the new pixel, before actual encoding begins.
+	 * <p>
+	 * This is required, for example, for RLE, to emit instructions when the color is no longer equal to the previous.
+	 * <p>
+	 * Does nothing unless overridden.
+	 */
+	private void preEncode(int previous, int color, QoiFlowOutput dst) {
+		for (int index : preEncoders) {
+			QoiFlowInstructionDispatch.preEncode(kinds[index], instructions[index], previous, color, dst);
+		}
+	}
+
+	private void mainEncode(int previous, int color, QoiFlowOutput dst) {
+		for (int index = 0; index < instructions.length; index++) {
+			QoiFlowInstruction instruction = instructions[index];
+
+			int numBytes = QoiFlowInstructionDispatch.encode(kinds[index], instruction, previous, color, buffer);
+			if (numBytes > 0) {
+				dst.putInstruction(instruction, buffer, 0, numBytes);
+				return;
+			} else if (numBytes == 0) {
+				// Deferred, for example, a run that continues.
+				return;
+			}
+		}
+
+		throw new AssertionError("None of the instructions could encode: " + QoiFlowColor.fromRGBA(color));
+	}
+
+	/**
+	 * Give instructions the opportunity to emit deferred data at the end of the stream.
+	 * <p>
+	 * This marks the end of an encoding cycle.
+	 * Continuing to use this state afterwards results in unspecified behavior.
+	 * <p>
+	 * This is required, for example, for RLE, to emit instructions when the counter is {@code > 1}.
+	 */
+	public void finishEncoding(QoiFlowOutput dst) {
+		if (trace != null) {
+			tracingOutput.dst = dst;
+			tracingOutput.color = previousColor;
+			for (int i = 0; i < instructions.length; i++) {
+				tracingOutput.slot = i;
+				instructions[i].postEncode(tracingOutput);
+			}
+
+			trace.end();
+			return;
+		}
+
+		for (int index : postEncoders) {
+			instructions[index].postEncode(dst);
+		}
+	}
+
+	/**
+	 * Decodes one instruction.
+	 * <p>
+	 * The code space is completely partitioned by the codec, so this is a direct table lookup.
+	 *
+	 * @param code      The first byte of the instruction, in the range [0, 255], just read from {@code src}
+	 * @param lastColor The previous decoded color, packed as {@code 0xRRGGBBAA}
+	 * @return The decoded color and the number of times to repeat it, packed with
+	 * {@link QoiFlowColorRun#pack(int, int)}.
+	 */
+	public long decode(int code, ByteBuffer src, int lastColor) {
+		if (trace != null) {
+			return decodeTraced(code, src, lastColor);
+		}
+
+		return QoiFlowInstructionDispatch.decode(
+				kindsByCode[code], instructionsByCode[code], localCodes[code], src, lastColor);
+	}
+
+	private long decodeTraced(int code, ByteBuffer src, int lastColor) {
+		int  start    = src.position() - 1;
+		long colorRun = QoiFlowInstructionDispatch.decode(
+				kindsByCode[code], instructionsByCode[code], localCodes[code], src, lastColor);
+		int  length   = src.position() - start;
+
+		int color = QoiFlowColorRun.color(colorRun);
+		trace.record(instructionIndicesByCode[code], length, color, tracingOutput.streamOffset);
+		tracingOutput.streamOffset += length;
+
+		return colorRun;
+	}
+
+	/**
+	 * Marks the end of a decoding cycle.
+	 * Continuing to use this state afterwards results in unspecified behavior.
+	 * <p>
+	 * This only matters when tracing, to write the remaining records of this stream.
+	 */
+	public void finishDecoding() {
+		if (trace != null) {
+			trace.end();
+		}
+	}
+
+	/**
+	 * Give instructions the opportunity to update their internal state depending on the decoded color.
+	 * <p>
+	 * This is required, for example, for Color History, to record a color not decoded by itself.
+	 *
+	 * @param color The decoded color, packed as {@code 0xRRGGBBAA}
+	 */
+	public void postDecode(int color) {
+		for (int index : postDecoders) {
+			QoiFlowInstructionDispatch.postDecode(kinds[index], instructions[index], color);
+		}
+	}
+
+	/**
+	 * Records every instruction on its way to the actual output.
+	 */
+	private final class TracingOutput implements QoiFlowOutput {
+		private QoiFlowOutput dst          = null;
+		private int           slot         = 0;
+		private int           color        = 0;
+		private long          streamOffset = 0;
+
+		@Override
+		public void put(byte value) {
+			dst.put(value);
+		}
+
+		@Override
+		public void put(byte[] src, int offset, int length) {
+			dst.put(src, offset, length);
+		}
+
+		@Override
+		public void putInt(int value) {
+			dst.putInt(value);
+		}
+
+		@Override
+		public void putInstruction(QoiFlowInstruction instruction, byte[] src, int offset, int length) {
+			trace.record(slot, length, color, streamOffset);
+			streamOffset += length;
+
+			dst.putInstruction(instruction, src, offset, length);
+		}
+
+		@Override
+		public long size() {
+			return dst.size();
+		}
+	}
+}
@@ -14,4 +14,26 @@ public record QoiFlowColor(int r,
 		this.b = b & 0xFF;
 		this.a = a & 0xFF;
 	}
+
+	/**
+	 * Creates a color from the packed representation used by the allocation-free code paths.
+	 *
+	 * @see #packRGBA(int, int, int, int)
+	 */
+	public static QoiFlowColor fromRGBA(int rgba) {
+		return new QoiFlowColor(rgba >>> 24, rgba >> 16, rgba >> 8, rgba);
+	}
+
+	/**
+	 * Packs the four components into a single int, in the order {@code 0xRRGGBBAA}.
+	 * <p>
+	 * Only the lower 8 bits of each component are used.
+	 */
+	public static int packRGBA(int r, int g, int b, int a) {
+		return (r & 0xFF) << 24 | (g & 0xFF) << 16 | (b & 0xFF) << 8 | a & 0xFF;
+	}
+
+	public int toRGBA() {
+		return r << 24 | g << 16 | b << 8 | a;
+	}
 }
@@ -1,17 +1,36 @@
 package org.digitalmodular.qoiflow;
 
-import java.util.Objects;
-
-import static org.digitalmodular.util.Validators.requireAtLeast;
-
 /**
+ * A decoded color and the number of times to repeat it, packed into a {@code long} so decoding doesn't have to
+ * allocate anything per instruction.
+ * <p>
+ * The count is in the upper 32 bits, and the color (packed as {@code 0xRRGGBBAA}) in the lower 32 bits.
+ *
  * @author Mark Jeronimus
+ * @see QoiFlowColor#packRGBA(int, int, int, int)
  */
 // Created 2022-06-05
-public record QoiFlowColorRun(QoiFlowColor color,
-                              int count) {
-	public QoiFlowColorRun(QoiFlowColor color, int count) {
-		this.color = Objects.requireNonNull(color, "'color' can't be null");
-		this.count = requireAtLeast(1, count, "count");
+public final class QoiFlowColorRun {
+	private QoiFlowColorRun() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * @param color The color, packed as {@code 0xRRGGBBAA}
+	 * @param count The number of pixels, at least 1.
+	 */
+	public static long pack(int color, int count) {
+		return (long)count << 32 | color & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Returns the color, packed as {@code 0xRRGGBBAA}.
+	 */
+	public static int color(long colorRun) {
+		return (int)colorRun;
+	}
+
+	public static int count(long colorRun) {
+		return (int)(colorRun >>> 32);
 	}
 }
@@ -8,6 +8,39 @@ public record QoiFlowComponentFormat(int bitsR,
                                      int bitsG,
                                      int bitsB,
                                      int bitsA) {
+	/**
+	 * Returns the number of unused low bits of the red component, which the encoder shifts out.
+	 */
+	public int shiftR() {
+		return shiftFor(bitsR);
+	}
+
+	public int shiftG() {
+		return shiftFor(bitsG);
+	}
+
+	public int shiftB() {
+		return shiftFor(bitsB);
+	}
+
+	public int shiftA() {
+		return shiftFor(bitsA);
+	}
+
+	/**
+	 * Returns whether alpha is 255 everywhere, in which case decoders don't need to store it.
+	 */
+	public boolean isOpaque() {
+		return bitsA == 0;
+	}
+
+	/**
+	 * A component without any bits is constant (0, or 255 for alpha), so it doesn't need shifting.
+	 */
+	private static int shiftFor(int bits) {
+		return bits == 0 ? 0 : 8 - bits;
+	}
+
 	@Override
 	public String toString() {
 		return "bits=" + bitsR + '/' + bitsG + '/' + bitsB + '/' + bitsA;
@@ -0,0 +1,68 @@
+package org.digitalmodular.qoiflow;
+
+/**
+ * The order in which the components of a pixel are stored in a decode target.
+ * <p>
+ * In byte targets, the components are stored in the order of the name, one byte each.
+ * In {@code int} targets, they are packed in the order of the name from the most significant used byte down to the
+ * least significant byte, so {@link #ARGB} is {@code 0xAARRGGBB} (like {@link java.awt.image.BufferedImage#getRGB}),
+ * {@link #RGBA} is {@code 0xRRGGBBAA}, and {@link #RGB} is {@code 0x00RRGGBB}.
+ * <p>
+ * Orders without alpha drop the alpha component.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-07-02
+public enum QoiFlowComponentOrder {
+	RGBA(0, 1, 2, 3),
+	ARGB(1, 2, 3, 0),
+	BGRA(2, 1, 0, 3),
+	ABGR(3, 2, 1, 0),
+	RGB(0, 1, 2, -1),
+	BGR(2, 1, 0, -1);
+
+	private final int offsetR;
+	private final int offsetG;
+	private final int offsetB;
+	private final int offsetA;
+
+	QoiFlowComponentOrder(int offsetR, int offsetG, int offsetB, int offsetA) {
+		this.offsetR = offsetR;
+		this.offsetG = offsetG;
+		this.offsetB = offsetB;
+		this.offsetA = offsetA;
+	}
+
+	/**
+	 * Returns the position of the red component within a pixel, counting from the first byte.
+	 */
+	public int offsetR() {
+		return offsetR;
+	}
+
+	public int offsetG() {
+		return offsetG;
+	}
+
+	public int offsetB() {
+		return offsetB;
+	}
+
+	/**
+	 * Returns the position of the alpha component within a pixel, or -1 if this order has no alpha.
+	 */
+	public int offsetA() {
+		return offsetA;
+	}
+
+	public boolean hasAlpha() {
+		return offsetA >= 0;
+	}
+
+	/**
+	 * Returns the number of bytes per pixel.
+	 */
+	public int numComponents() {
+		return hasAlpha() ? 4 : 3;
+	}
+}
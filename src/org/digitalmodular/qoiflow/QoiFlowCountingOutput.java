@@ -0,0 +1,69 @@
+package org.digitalmodular.qoiflow;
+
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
+
+/**
+ * Output that discards everything, and only counts the bytes, in total and per instruction.
+ * <p>
+ * Use this to find the encoded size without allocating or writing any output,
+ * for example, to compare codecs or estimate buffer sizes.
+ * <p>
+ * Instructions are identified by their code offset, so any instruction of the codec that encoded the stream
+ * (including those in {@link QoiFlowStreamCodec#instructions()}) can be used to query the counts.
+ * Bytes not written by instructions (the header and footer) are only counted in the total.
+ *
+ * @author Mark Jeronimus
+ * @see QoiFlowImageEncoder#countEncodedBytes(java.awt.image.BufferedImage)
+ */
+// Created 2022-07-02
+public class QoiFlowCountingOutput implements QoiFlowOutput {
+	private long size = 0;
+
+	private final long[] numBytesByCodeOffset        = new long[256];
+	private final long[] numInstructionsByCodeOffset = new long[256];
+
+	@Override
+	public void put(byte value) {
+		size++;
+	}
+
+	@Override
+	public void put(byte[] src, int offset, int length) {
+		size += length;
+	}
+
+	@Override
+	public void putInt(int value) {
+		size += 4;
+	}
+
+	@Override
+	public void putInstruction(QoiFlowInstruction instruction, byte[] src, int offset, int length) {
+		size += length;
+
+		int codeOffset = instruction.getCodeOffset();
+		numBytesByCodeOffset[codeOffset] += length;
+		numInstructionsByCodeOffset[codeOffset]++;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes written by the instruction.
+	 */
+	public long getNumBytes(QoiFlowInstruction instruction) {
+		return numBytesByCodeOffset[instruction.getCodeOffset()];
+	}
+
+	/**
+	 * Returns the number of times the instruction was written.
+	 * <p>
+	 * An entire run counts as one.
+	 */
+	public long getNumInstructions(QoiFlowInstruction instruction) {
+		return numInstructionsByCodeOffset[instruction.getCodeOffset()];
+	}
+}
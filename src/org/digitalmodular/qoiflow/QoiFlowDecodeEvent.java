@@ -0,0 +1,16 @@
+package org.digitalmodular.qoiflow;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * @author Mark Jeronimus
+ * @see QoiFlowImageDecoder
+ */
+// Created 2022-07-02
+@Name("org.digitalmodular.qoiflow.Decode")
+@Label("QOIFlow Decode")
+@Description("Decoding of one image, or part of one")
+final class QoiFlowDecodeEvent extends QoiFlowCodecEvent {
+}
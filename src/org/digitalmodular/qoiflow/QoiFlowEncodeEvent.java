@@ -0,0 +1,16 @@
+package org.digitalmodular.qoiflow;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * @author Mark Jeronimus
+ * @see QoiFlowImageEncoder
+ */
+// Created 2022-07-02
+@Name("org.digitalmodular.qoiflow.Encode")
+@Label("QOIFlow Encode")
+@Description("Encoding of one image")
+final class QoiFlowEncodeEvent extends QoiFlowCodecEvent {
+}
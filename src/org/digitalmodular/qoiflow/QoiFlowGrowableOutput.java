@@ -0,0 +1,89 @@
+package org.digitalmodular.qoiflow;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.digitalmodular.util.Validators.requireAtLeast;
+
+/**
+ * Output that writes to a heap array, which grows as needed.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-27
+public class QoiFlowGrowableOutput implements QoiFlowOutput {
+	/** The largest array size that's safe on all VMs */
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private byte[] array;
+	private int    size = 0;
+
+	public QoiFlowGrowableOutput(int initialCapacity) {
+		array = new byte[requireAtLeast(1, initialCapacity, "initialCapacity")];
+	}
+
+	@Override
+	public void put(byte value) {
+		if (size == array.length) {
+			grow(1);
+		}
+
+		array[size++] = value;
+	}
+
+	@Override
+	public void put(byte[] src, int offset, int length) {
+		if (length > array.length - size) {
+			grow(length);
+		}
+
+		System.arraycopy(src, offset, array, size, length);
+		size += length;
+	}
+
+	private void grow(int minimumIncrease) {
+		long newCapacity = Math.max((long)array.length * 3 / 2, (long)size + minimumIncrease);
+		if (newCapacity > MAX_CAPACITY) {
+			if ((long)size + minimumIncrease > MAX_CAPACITY) {
+				throw new OutOfMemoryError("Encoded stream too large for a heap array: " + newCapacity);
+			}
+
+			newCapacity = MAX_CAPACITY;
+		}
+
+		array = Arrays.copyOf(array, (int)newCapacity);
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	public int capacity() {
+		return array.length;
+	}
+
+	/**
+	 * Returns a view of the written bytes, without copying.
+	 * <p>
+	 * The buffer is positioned at the end of the data (like after writing to it),
+	 * and its capacity may exceed the size. Call {@link ByteBuffer#flip()} to read from it.
+	 */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(array, 0, array.length).position(size);
+	}
+
+	/**
+	 * Returns the written bytes in an array of exactly the right size.
+	 * <p>
+	 * If the backing array is already the right size, it's returned without copying.
+	 * Continuing to write to this output after this call results in unspecified behavior.
+	 */
+	public byte[] toByteArray() {
+		if (array.length != size) {
+			array = Arrays.copyOf(array, size);
+		}
+
+		return array;
+	}
+}
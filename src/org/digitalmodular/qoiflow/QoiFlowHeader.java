@@ -0,0 +1,24 @@
+package org.digitalmodular.qoiflow;
+
+import java.util.Objects;
+
+/**
+ * The image properties stored at the start of every stream.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-29
+public record QoiFlowHeader(int width,
+                            int height,
+                            QoiFlowComponentFormat componentFormat,
+                            QoiFlowCodecDescriptor codecDescriptor) {
+	public QoiFlowHeader(int width,
+	                     int height,
+	                     QoiFlowComponentFormat componentFormat,
+	                     QoiFlowCodecDescriptor codecDescriptor) {
+		this.width = width;
+		this.height = height;
+		this.componentFormat = Objects.requireNonNull(componentFormat, "'componentFormat' can't be null");
+		this.codecDescriptor = Objects.requireNonNull(codecDescriptor, "'codecDescriptor' can't be null");
+	}
+}
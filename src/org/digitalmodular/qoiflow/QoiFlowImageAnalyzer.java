@@ -5,13 +5,24 @@ import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
 import java.awt.image.SinglePixelPackedSampleModel;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * @author Mark Jeronimus
  */
 // Created 2022-06-24
 public final class QoiFlowImageAnalyzer {
+	/**
+	 * Reads 8 samples at once, with the first sample in the lowest byte.
+	 */
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
 	private QoiFlowImageAnalyzer() {
 		throw new AssertionError();
 	}
@@ -28,73 +39,224 @@ public final class QoiFlowImageAnalyzer {
 	}
 
 	private static QoiFlowComponentFormat analyzeComponentColorModelImage(BufferedImage image) {
-		byte[] samples     = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
-		int[]  bandOffsets = ((ComponentSampleModel)image.getRaster().getSampleModel()).getBandOffsets();
-
-		int usedBitsR = 0;
-		int usedBitsG = 0;
-		int usedBitsB = 0;
-		int usedBitsA = 0;
-
-		int p = 0;
-		if (bandOffsets.length == 4) {
-			while (p < samples.length) {
-				usedBitsR |= samples[p + bandOffsets[0]];
-				usedBitsG |= samples[p + bandOffsets[1]];
-				usedBitsB |= samples[p + bandOffsets[2]];
-				usedBitsA |= samples[p + bandOffsets[3]];
-				p += 4;
-			}
-		} else if (bandOffsets.length == 3) {
-			while (p < samples.length) {
-				usedBitsR |= samples[p + bandOffsets[0]];
-				usedBitsG |= samples[p + bandOffsets[1]];
-				usedBitsB |= samples[p + bandOffsets[2]];
-				p += 3;
-			}
-		} else {
+		Raster raster   = image.getRaster();
+		int    numBands = raster.getNumBands();
+		if (numBands != 3 && numBands != 4) {
 			throw new IllegalArgumentException("Incompatible image: " + image);
 		}
 
-		return new QoiFlowComponentFormat(bitsRequiredFor(usedBitsR),
-		                                  bitsRequiredFor(usedBitsG),
-		                                  bitsRequiredFor(usedBitsB),
-		                                  bitsRequiredFor(usedBitsA));
+		// By band.
+		int[] usedBits   = new int[numBands];
+		int[] commonBits = new int[numBands];
+		Arrays.fill(commonBits, 0xFF);
+
+		SampleModel sampleModel = raster.getSampleModel();
+		if (sampleModel instanceof ComponentSampleModel && isInterleaved((ComponentSampleModel)sampleModel)) {
+			analyzeInterleavedSamples(raster, (ComponentSampleModel)sampleModel, usedBits, commonBits);
+		} else {
+			analyzeSamples(raster, usedBits, commonBits);
+		}
+
+		int usedBitsA   = numBands == 4 ? usedBits[3] : 0;
+		int commonBitsA = numBands == 4 ? commonBits[3] : 0xFF;
+
+		return new QoiFlowComponentFormat(bitsRequiredFor(usedBits[0]),
+		                                  bitsRequiredFor(usedBits[1]),
+		                                  bitsRequiredFor(usedBits[2]),
+		                                  alphaBitsRequiredFor(usedBitsA, commonBitsA));
 	}
 
-	private static QoiFlowComponentFormat analyzeDirectColorModelImage(BufferedImage image) {
-		int[] pixels     = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
-		int[] bitOffsets = ((SinglePixelPackedSampleModel)image.getSampleModel()).getBitOffsets();
-
-		int usedBitsR = 0;
-		int usedBitsG = 0;
-		int usedBitsB = 0;
-		int usedBitsA = 0;
-
-		if (bitOffsets.length == 4) {
-			for (int pixel : pixels) {
-				usedBitsR |= pixel >> bitOffsets[0];
-				usedBitsG |= pixel >> bitOffsets[1];
-				usedBitsB |= pixel >> bitOffsets[2];
-				usedBitsA |= pixel >> bitOffsets[3];
+	/**
+	 * Whether all samples of a pixel are next to each other in one bank, 3 or 4 bytes per pixel.
+	 */
+	private static boolean isInterleaved(ComponentSampleModel sampleModel) {
+		int pixelStride = sampleModel.getPixelStride();
+		if (pixelStride != 3 && pixelStride != 4) {
+			return false;
+		}
+
+		for (int band = 0; band < sampleModel.getNumBands(); band++) {
+			if (sampleModel.getBankIndices()[band] != 0 || sampleModel.getBandOffsets()[band] >= pixelStride) {
+				return false;
 			}
-		} else if (bitOffsets.length == 3) {
-			for (int pixel : pixels) {
-				usedBitsR |= pixel >> bitOffsets[0];
-				usedBitsG |= pixel >> bitOffsets[1];
-				usedBitsB |= pixel >> bitOffsets[2];
+		}
+
+		return true;
+	}
+
+	/**
+	 * Rows are analyzed a word at a time, and all at once when there's no padding between them.
+	 * The data buffer offset and the sample model translation of subimages are taken into account.
+	 */
+	private static void analyzeInterleavedSamples(Raster raster,
+	                                              ComponentSampleModel sampleModel,
+	                                              int[] usedBits,
+	                                              int[] commonBits) {
+		byte[] samples        = ((DataBufferByte)raster.getDataBuffer()).getData();
+		int[]  bandOffsets    = sampleModel.getBandOffsets();
+		int    pixelStride    = sampleModel.getPixelStride();
+		int    scanlineStride = sampleModel.getScanlineStride();
+
+		// Not getOffset(), which includes the first band offset.
+		int start = raster.getDataBuffer().getOffset() -
+		            raster.getSampleModelTranslateY() * scanlineStride -
+		            raster.getSampleModelTranslateX() * pixelStride;
+		int rowLength = raster.getWidth() * pixelStride;
+		int numRows   = raster.getHeight();
+		if (scanlineStride == rowLength) {
+			rowLength *= numRows;
+			numRows = 1;
+		}
+
+		// By sample offset within the pixel, not by band.
+		int[] usedSampleBits   = new int[pixelStride];
+		int[] commonSampleBits = new int[pixelStride];
+		Arrays.fill(commonSampleBits, 0xFF);
+
+		for (int y = 0; y < numRows; y++) {
+			int rowStart = start + y * scanlineStride;
+			if (pixelStride == 4) {
+				analyzeSamples4(samples, rowStart, rowStart + rowLength, usedSampleBits, commonSampleBits);
+			} else {
+				analyzeSamples3(samples, rowStart, rowStart + rowLength, usedSampleBits);
 			}
-		} else {
+		}
+
+		for (int band = 0; band < bandOffsets.length; band++) {
+			usedBits[band] = usedSampleBits[bandOffsets[band]];
+			commonBits[band] = commonSampleBits[bandOffsets[band]];
+		}
+	}
+
+	/**
+	 * Reads two pixels at a time as one {@code long}.
+	 * Sample {@code i} of every pixel ends up in bytes {@code i} and {@code i + 4} of the accumulators.
+	 */
+	private static void analyzeSamples4(byte[] samples, int start, int end, int[] usedBits, int[] commonBits) {
+		long used   = 0;
+		long common = -1;
+
+		int p = start;
+		for (; p < end - 7; p += 8) {
+			long eightSamples = (long)LONGS.get(samples, p);
+			used |= eightSamples;
+			common &= eightSamples;
+		}
+
+		for (int lane = 0; lane < 8; lane++) {
+			usedBits[lane & 3] |= (int)(used >>> (lane * 8)) & 0xFF;
+			commonBits[lane & 3] &= (int)(common >>> (lane * 8)) & 0xFF;
+		}
+
+		for (; p < end; p++) {
+			usedBits[(p - start) & 3] |= samples[p] & 0xFF;
+			commonBits[(p - start) & 3] &= samples[p] & 0xFF;
+		}
+	}
+
+	/**
+	 * Reads eight pixels at a time as three {@code long}s.
+	 * Sample {@code i} of every pixel ends up in the bytes {@code j} of the accumulators where {@code j % 3 == i}
+	 * (counting the bytes of the accumulators consecutively).
+	 * <p>
+	 * Three samples per pixel leave no room for alpha, so only the used bits are needed.
+	 */
+	private static void analyzeSamples3(byte[] samples, int start, int end, int[] usedBits) {
+		long[] used = new long[3];
+
+		int p = start;
+		for (; p < end - 23; p += 24) {
+			used[0] |= (long)LONGS.get(samples, p);
+			used[1] |= (long)LONGS.get(samples, p + 8);
+			used[2] |= (long)LONGS.get(samples, p + 16);
+		}
+
+		for (int lane = 0; lane < 24; lane++) {
+			usedBits[lane % 3] |= (int)(used[lane / 8] >>> (lane % 8 * 8)) & 0xFF;
+		}
+
+		for (; p < end; p++) {
+			usedBits[(p - start) % 3] |= samples[p] & 0xFF;
+		}
+	}
+
+	/**
+	 * The slow path, for other layouts, for example, a {@link java.awt.image.BandedSampleModel}.
+	 */
+	private static void analyzeSamples(Raster raster, int[] usedBits, int[] commonBits) {
+		int   width = raster.getWidth();
+		int[] row   = new int[width];
+
+		for (int y = 0; y < raster.getHeight(); y++) {
+			for (int band = 0; band < usedBits.length; band++) {
+				raster.getSamples(0, y, width, 1, band, row);
+				for (int sample : row) {
+					usedBits[band] |= sample;
+					commonBits[band] &= sample;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shifting distributes over OR and AND, so the components are only separated after combining all pixels.
+	 * <p>
+	 * Like {@link #analyzeInterleavedSamples(Raster, ComponentSampleModel, int[], int[])}, this only reads the
+	 * pixels of the image, not the whole data buffer.
+	 */
+	private static QoiFlowComponentFormat analyzeDirectColorModelImage(BufferedImage image) {
+		Raster                       raster      = image.getRaster();
+		int[]                        pixels      = ((DataBufferInt)raster.getDataBuffer()).getData();
+		SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel)raster.getSampleModel();
+		int[]                        bitOffsets  = sampleModel.getBitOffsets();
+
+		if (bitOffsets.length != 3 && bitOffsets.length != 4) {
 			throw new IllegalArgumentException("Incompatible image: " + image);
 		}
 
-		return new QoiFlowComponentFormat(bitsRequiredFor(usedBitsR),
-		                                  bitsRequiredFor(usedBitsG),
-		                                  bitsRequiredFor(usedBitsB),
-		                                  bitsRequiredFor(usedBitsA));
+		int scanlineStride = sampleModel.getScanlineStride();
+		int start = raster.getDataBuffer().getOffset() -
+		            raster.getSampleModelTranslateY() * scanlineStride -
+		            raster.getSampleModelTranslateX();
+		int width = raster.getWidth();
+
+		int used   = 0;
+		int common = -1;
+		for (int y = 0; y < raster.getHeight(); y++) {
+			int p   = start + y * scanlineStride;
+			int end = p + width;
+			for (; p < end; p++) {
+				used |= pixels[p];
+				common &= pixels[p];
+			}
+		}
+
+		int usedBitsA   = bitOffsets.length == 4 ? used >> bitOffsets[3] : 0;
+		int commonBitsA = bitOffsets.length == 4 ? common >> bitOffsets[3] : 0xFF;
+
+		return new QoiFlowComponentFormat(bitsRequiredFor(used >> bitOffsets[0]),
+		                                  bitsRequiredFor(used >> bitOffsets[1]),
+		                                  bitsRequiredFor(used >> bitOffsets[2]),
+		                                  alphaBitsRequiredFor(usedBitsA, commonBitsA));
+	}
+
+	/**
+	 * Unlike the other components, a missing alpha means 255 instead of 0.
+	 * Opaque images get 0 bits, so decoders can leave alpha out altogether,
+	 * and images that are entirely transparent get 1 bit to tell them apart.
+	 */
+	private static int alphaBitsRequiredFor(int usedBits, int commonBits) {
+		if ((commonBits & 0xFF) == 0xFF) {
+			return 0;
+		}
+
+		return Math.max(1, bitsRequiredFor(usedBits));
 	}
 
 	private static int bitsRequiredFor(int value) {
+		// Ignore the bits of other components that were shifted along.
+		value &= 0xFF;
+
 		if (value == 0) {
 			return 0;
 		} else {
@@ -1,9 +1,16 @@
 package org.digitalmodular.qoiflow;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
 
 /**
@@ -12,61 +19,419 @@ import java.util.Objects;
 // Created 2022-05-14
 // Changed 2022-06-18 Copied from FluidQOI
 public class QoiFlowImageDecoder {
-	private int width  = 0;
-	private int height = 0;
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	/** The maximum number of bytes {@link #readHeader(ByteBuffer, int)} consumes */
+	private static final int MAX_HEADER_SIZE =
+			QoiFlowImageEncoder.FIXED_HEADER_LENGTH + QoiFlowCodecDescriptor.MAX_SIZE;
 
 	private final QoiFlowStreamCodec codec;
+	private final QoiFlowCodecCache  codecCache;
+
+	private int opaqueImageType = BufferedImage.TYPE_3BYTE_BGR;
 
+	/**
+	 * Creates a decoder for streams encoded with this codec configuration.
+	 * <p>
+	 * Streams with the same instructions but different variable lengths (for example, when the encoder tuned them)
+	 * are decoded with a copy of the codec that uses the lengths from the header.
+	 * Streams with different instructions are rejected.
+	 */
 	public QoiFlowImageDecoder(QoiFlowStreamCodec codec) {
 		this.codec = Objects.requireNonNull(codec, "'codec' can't be null");
+		codecCache = null;
+	}
+
+	/**
+	 * Creates a decoder for streams with any configuration,
+	 * which takes prepared codecs from the cache according to the instruction table in the header.
+	 * <p>
+	 * The cache can be shared between decoders and threads.
+	 */
+	public QoiFlowImageDecoder(QoiFlowCodecCache codecCache) {
+		this.codecCache = Objects.requireNonNull(codecCache, "'codecCache' can't be null");
+		codec = null;
+	}
+
+	public int getOpaqueImageType() {
+		return opaqueImageType;
+	}
+
+	/**
+	 * Sets the type of images created for streams without alpha (see {@link QoiFlowComponentFormat#isOpaque()}).
+	 * Other streams always decode to {@link BufferedImage#TYPE_4BYTE_ABGR}.
+	 * <p>
+	 * The default is {@link BufferedImage#TYPE_3BYTE_BGR}, which takes a quarter less memory than
+	 * {@link BufferedImage#TYPE_4BYTE_ABGR}.
+	 *
+	 * @param opaqueImageType One of {@link BufferedImage#TYPE_3BYTE_BGR}, {@link BufferedImage#TYPE_INT_RGB} or
+	 *                        {@link BufferedImage#TYPE_4BYTE_ABGR}.
+	 */
+	public void setOpaqueImageType(int opaqueImageType) {
+		this.opaqueImageType = requireOpaqueImageType(opaqueImageType);
 	}
 
+	/**
+	 * Decodes a stream that is entirely contained in the buffer.
+	 * <p>
+	 * The buffer can be a heap, direct or memory-mapped buffer.
+	 */
 	public BufferedImage decode(ByteBuffer src) throws IOException {
-		readHeader(src);
+		Objects.requireNonNull(src, "src");
+
+		QoiFlowDecodeEvent event = new QoiFlowDecodeEvent();
+		event.start();
+
+		int           streamStart = src.position();
+		QoiFlowHeader header      = readHeader(src, QoiFlowImageEncoder.QOIF_MAGIC);
+
+		BufferedImage image = decodeAfterHeader(header, src, null, null, event);
+
+		event.finish(header, src.position() - streamStart);
+		return image;
+	}
+
+	/**
+	 * Decodes only the pixels inside a region, from a stream that is entirely contained in the buffer.
+	 * <p>
+	 * Every pixel depends on the ones before it, so all instructions up to the last row of the region are still
+	 * decoded, but only the pixels inside the region are stored, and decoding stops right after its last row.
+	 * This makes crops near the top of an image the cheapest.
+	 * <p>
+	 * The buffer is left at the last decoded instruction, not at the end of the stream.
+	 *
+	 * @param region The part of the image to decode. Must be non-empty and lie within the image.
+	 * @return An image the size of the region.
+	 * @throws IllegalArgumentException When the region doesn't lie within the image. The buffer is not consumed.
+	 * @see #peekHeader(ByteBuffer)
+	 */
+	public BufferedImage decode(ByteBuffer src, Rectangle region) throws IOException {
+		Objects.requireNonNull(src, "src");
+		Objects.requireNonNull(region, "region");
+
+		QoiFlowDecodeEvent event = new QoiFlowDecodeEvent();
+		event.start();
+
+		int           streamStart = src.position();
+		QoiFlowHeader header      = readHeader(src, QoiFlowImageEncoder.QOIF_MAGIC);
+
+		if (region.isEmpty() || !new Rectangle(header.width(), header.height()).contains(region)) {
+			src.position(streamStart);
+			throw new IllegalArgumentException(
+					"'region' must lie within the image (" + header.width() + "x" + header.height() + "): " + region);
+		}
+
+		QoiFlowCodecState state = newState(header, event);
+
+		BufferedImage      image  = createImage(region.width, region.height, header.componentFormat(), opaqueImageType);
+		QoiFlowPixelTarget target = QoiFlowPixelTarget.ofRegion(QoiFlowPixelTarget.of(image, null),
+		                                                        region.x,
+		                                                        region.y,
+		                                                        region.width,
+		                                                        region.height);
+		decodeImage(state, src, null, target, header.componentFormat(), header.width(), 0, region.y + region.height);
+
+		event.finish(header, src.position() - streamStart);
+		return image;
+	}
+
+	/**
+	 * Decodes a file by memory-mapping it, so the encoded stream is never copied onto the heap.
+	 * <p>
+	 * Files too large to map in one piece are streamed instead.
+	 */
+	public BufferedImage decode(Path file) throws IOException {
+		Objects.requireNonNull(file, "file");
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				return decode(channel, null);
+			}
+
+			return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	/**
+	 * Decodes a stream while it's being read, through a refillable buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+	 * <p>
+	 * The channel is not closed. It may have been read beyond the end of the image.
+	 *
+	 * @param listener Receives every scanline as soon as it's complete. May be {@code null}.
+	 */
+	public BufferedImage decode(ReadableByteChannel channel, QoiFlowScanlineListener listener) throws IOException {
+		Objects.requireNonNull(channel, "channel");
+
+		QoiFlowDecodeEvent event = new QoiFlowDecodeEvent();
+		event.start();
+
+		CountingChannel countingChannel = new CountingChannel(channel);
+
+		ByteBuffer src = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+		src.limit(0);
+
+		// Short streams may contain less, which readHeader() will detect.
+		ensureRemaining(src, countingChannel, MAX_HEADER_SIZE);
+
+		QoiFlowHeader header = readHeader(src, QoiFlowImageEncoder.QOIF_MAGIC);
+
+		BufferedImage image = decodeAfterHeader(header, src, countingChannel, listener, event);
+
+		event.finish(header, countingChannel.getNumBytesRead() - src.remaining());
+		return image;
+	}
+
+	/**
+	 * Decodes a stream while it's being read, through a refillable buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+	 * <p>
+	 * The stream is not closed. It may have been read beyond the end of the image.
+	 *
+	 * @param listener Receives every scanline as soon as it's complete. May be {@code null}.
+	 */
+	public BufferedImage decode(InputStream in, QoiFlowScanlineListener listener) throws IOException {
+		Objects.requireNonNull(in, "in");
+
+		return decode(Channels.newChannel(in), listener);
+	}
+
+	/**
+	 * Reads the header at the position of the buffer without consuming it, for example, to allocate a target for
+	 * one of the decode methods that don't create an image.
+	 */
+	public static QoiFlowHeader peekHeader(ByteBuffer src) throws IOException {
+		Objects.requireNonNull(src, "src");
+
+		return readHeader(src.duplicate(), QoiFlowImageEncoder.QOIF_MAGIC);
+	}
+
+	/**
+	 * Decodes a stream that is entirely contained in the buffer into an {@code int} array, without creating an image.
+	 *
+	 * @param dst    Receives pixel ({@code x}, {@code y}) at index {@code offset + y * stride + x}.
+	 * @param stride The distance between rows, in {@code int}s.
+	 * @param order  How the components are packed in each {@code int}, for example, {@link QoiFlowComponentOrder#ARGB}.
+	 * @return The header, which contains the dimensions of the image.
+	 * @throws IllegalArgumentException When the image doesn't fit in the array. The buffer is not consumed.
+	 * @see #peekHeader(ByteBuffer)
+	 */
+	public QoiFlowHeader decode(ByteBuffer src, int[] dst, int offset, int stride, QoiFlowComponentOrder order)
+			throws IOException {
+		Objects.requireNonNull(src, "src");
+
+		return decodeIntoTarget(src, QoiFlowPixelTarget.of(dst, offset, stride, order));
+	}
+
+	/**
+	 * Decodes a stream that is entirely contained in the buffer into a {@code byte} array, without creating an image.
+	 *
+	 * @param dst    Receives the components of pixel ({@code x}, {@code y}) from index
+	 *               {@code offset + y * stride + x * order.numComponents()}.
+	 * @param stride The distance between rows, in bytes.
+	 * @return The header, which contains the dimensions of the image.
+	 * @throws IllegalArgumentException When the image doesn't fit in the array. The buffer is not consumed.
+	 * @see #peekHeader(ByteBuffer)
+	 */
+	public QoiFlowHeader decode(ByteBuffer src, byte[] dst, int offset, int stride, QoiFlowComponentOrder order)
+			throws IOException {
+		Objects.requireNonNull(src, "src");
+
+		return decodeIntoTarget(src, QoiFlowPixelTarget.of(dst, offset, stride, order));
+	}
+
+	/**
+	 * Decodes a stream that is entirely contained in the buffer into another buffer, without creating an image.
+	 * <p>
+	 * The target is typically a direct buffer that's uploaded to a texture afterwards.
+	 * Pixels are stored with absolute puts, so its position is neither used nor changed.
+	 *
+	 * @param dst    Receives the components of pixel ({@code x}, {@code y}) from index
+	 *               {@code offset + y * stride + x * order.numComponents()}.
+	 * @param stride The distance between rows, in bytes.
+	 * @return The header, which contains the dimensions of the image.
+	 * @throws IllegalArgumentException When the image doesn't fit below the limit of the target, or the target is
+	 *                                  read-only. The buffer is not consumed.
+	 * @see #peekHeader(ByteBuffer)
+	 */
+	public QoiFlowHeader decode(ByteBuffer src, ByteBuffer dst, int offset, int stride, QoiFlowComponentOrder order)
+			throws IOException {
+		Objects.requireNonNull(src, "src");
+
+		return decodeIntoTarget(src, QoiFlowPixelTarget.of(dst, offset, stride, order));
+	}
+
+	private QoiFlowHeader decodeIntoTarget(ByteBuffer src, QoiFlowPixelTarget target) throws IOException {
+		QoiFlowDecodeEvent event = new QoiFlowDecodeEvent();
+		event.start();
 
-		codec.reset();
+		int           streamStart = src.position();
+		QoiFlowHeader header      = readHeader(src, QoiFlowImageEncoder.QOIF_MAGIC);
 
-		BufferedImage image  = createImage(width, height);
-		byte[]        pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
-		decodeImage(src, pixels);
+		try {
+			target.validate(header.width(), header.height());
+		} catch (IllegalArgumentException ex) {
+			src.position(streamStart);
+			throw ex;
+		}
+
+		QoiFlowCodecState state = newState(header, event);
+		decodeImage(state, src, null, target, header.componentFormat(), header.width(), 0, header.height());
+
+		event.finish(header, src.position() - streamStart);
+		return header;
+	}
+
+	private BufferedImage decodeAfterHeader(QoiFlowHeader header,
+	                                        ByteBuffer src,
+	                                        ReadableByteChannel channel,
+	                                        QoiFlowScanlineListener listener,
+	                                        QoiFlowDecodeEvent event) throws IOException {
+		QoiFlowCodecState state = newState(header, event);
+
+		BufferedImage image = createImage(header.width(), header.height(), header.componentFormat(), opaqueImageType);
+		decodeImage(state,
+		            src,
+		            channel,
+		            QoiFlowPixelTarget.of(image, listener),
+		            header.componentFormat(),
+		            header.width(),
+		            0,
+		            header.height());
 
 		return image;
 	}
 
-	private void readHeader(ByteBuffer src) throws IOException {
+	private QoiFlowCodecState newState(QoiFlowHeader header, QoiFlowDecodeEvent event) throws IOException {
+		QoiFlowStreamCodec streamCodec = getCodec(header.codecDescriptor());
+		event.startCounting(streamCodec);
+		return streamCodec.newState();
+	}
+
+	private QoiFlowStreamCodec getCodec(QoiFlowCodecDescriptor codecDescriptor) throws IOException {
+		if (codecCache == null) {
+			return getMatchingCodec(codec, codecDescriptor);
+		}
+
+		try {
+			return codecCache.get(codecDescriptor);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Bad instruction table: " + codecDescriptor, ex);
+		}
+	}
+
+	/**
+	 * Returns the codec if it matches the configuration in the header, or a copy with the variable lengths from the
+	 * header if only those differ.
+	 */
+	static QoiFlowStreamCodec getMatchingCodec(QoiFlowStreamCodec codec, QoiFlowCodecDescriptor codecDescriptor)
+			throws IOException {
+		QoiFlowCodecDescriptor ownDescriptor = QoiFlowCodecDescriptor.of(codec);
+		if (ownDescriptor.equals(codecDescriptor)) {
+			return codec;
+		} else if (!ownDescriptor.hasSameInstructions(codecDescriptor)) {
+			throw new IOException("The stream was encoded with a different instruction table: " + codecDescriptor);
+		}
+
+		QoiFlowStreamCodec tunedCodec;
+		try {
+			tunedCodec = codecDescriptor.createCodec();
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Bad instruction table: " + codecDescriptor, ex);
+		}
+
+		codec.copyInstrumentationTo(tunedCodec);
+
+		return tunedCodec;
+	}
+
+	static QoiFlowHeader readHeader(ByteBuffer src, int expectedMagic) throws IOException {
+		try {
+			return readHeaderImpl(src, expectedMagic);
+		} catch (BufferUnderflowException ignored) {
+			throw new IOException("Truncated header");
+		}
+	}
+
+	private static QoiFlowHeader readHeaderImpl(ByteBuffer src, int expectedMagic) throws IOException {
 		int magic = src.getInt();
 
-		if (magic != QoiFlowImageEncoder.QOIF_MAGIC) { // "fqoi" in big-endian
+		if (magic != expectedMagic) {
 			throw new IOException("Bad 'magic': " + Integer.toString(magic, 16));
 		}
 
-		width = src.getInt();
+		// Streams from before the version was added have the first byte of the width here, which is always 0.
+		int version = src.get() & 0xFF;
+		if (version != QoiFlowImageEncoder.FORMAT_VERSION) {
+			throw new IOException("Unsupported format version: " + version);
+		}
+
+		int width = src.getInt();
 		if (width < 0 || width > 32768) {
 			throw new IOException("Bad width: " + width);
 		}
 
-		height = src.getInt();
+		int height = src.getInt();
 		if (height < 0 || height > 32768) {
 			throw new IOException("Bad height: " + height);
 		}
 
-		src.get();
-		src.get();
+		int bitsRG = src.get() & 0xFF;
+		int bitsBA = src.get() & 0xFF;
+		QoiFlowComponentFormat componentFormat =
+				new QoiFlowComponentFormat(bitsRG >> 4, bitsRG & 0xF, bitsBA >> 4, bitsBA & 0xF);
+
+		QoiFlowCodecDescriptor codecDescriptor = QoiFlowCodecDescriptor.read(src);
+
+		return new QoiFlowHeader(width, height, componentFormat, codecDescriptor);
+	}
+
+	static int requireOpaqueImageType(int opaqueImageType) {
+		if (opaqueImageType != BufferedImage.TYPE_3BYTE_BGR &&
+		    opaqueImageType != BufferedImage.TYPE_INT_RGB &&
+		    opaqueImageType != BufferedImage.TYPE_4BYTE_ABGR) {
+			throw new IllegalArgumentException("Unsupported 'opaqueImageType': " + opaqueImageType);
+		}
 
-		// TODO read instruction table
+		return opaqueImageType;
 	}
 
-	private static BufferedImage createImage(int width, int height) {
-		return new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+	static BufferedImage createImage(
+			int width, int height, QoiFlowComponentFormat componentFormat, int opaqueImageType) {
+		int imageType = componentFormat.isOpaque() ? opaqueImageType : BufferedImage.TYPE_4BYTE_ABGR;
+		return new BufferedImage(width, height, imageType);
 	}
 
-	private void decodeImage(ByteBuffer src, byte[] pixels) {
-		byte footerCode = codec.getFooterCode();
+	/**
+	 * Decodes the rows in the range [{@code startY}, {@code endY}) of an image into the target.
+	 * <p>
+	 * The state must be new.
+	 * Components are shifted back left by the unused low bits in the component format.
+	 *
+	 * @param channel Where to refill {@code src} from when it runs low, or {@code null} if src contains everything.
+	 */
+	static void decodeImage(QoiFlowCodecState state,
+	                        ByteBuffer src,
+	                        ReadableByteChannel channel,
+	                        QoiFlowPixelTarget target,
+	                        QoiFlowComponentFormat componentFormat,
+	                        int width,
+	                        int startY,
+	                        int endY) throws IOException {
+		byte footerCode         = state.getCodec().getFooterCode();
+		int  maxInstructionSize = state.getCodec().getMaxInstructionSize();
 
-		boolean      detectFooter = false;
-		QoiFlowColor lastColor    = QoiFlowStreamCodec.START_COLOR;
+		boolean detectFooter = false;
+		int     lastColor    = QoiFlowStreamCodec.START_COLOR.toRGBA();
+		int     remaining    = (endY - startY) * width;
+		int     x            = 0;
+		int     y            = startY;
+		int     completedY   = startY;
+
+		if (!ensureRemaining(src, channel, maxInstructionSize)) {
+			state.finishDecoding();
+			return;
+		}
 
-		int p = 0;
 		while (true) {
 			int code = src.get() & 0xFF;
 
@@ -75,34 +440,110 @@ public class QoiFlowImageDecoder {
 				break;
 			}
 
-			QoiFlowColorRun colorRun = codec.decode(code, src, lastColor);
-			lastColor = colorRun.color();
-			int count = colorRun.count();
+			long colorRun = state.decode(code, src, lastColor);
+			lastColor = QoiFlowColorRun.color(colorRun);
+			int count = Math.min(QoiFlowColorRun.count(colorRun), remaining);
+			int rgba  = toUnshiftedRGBA(lastColor, componentFormat);
 
-			if (count * 4 > pixels.length - p) {
-				count = (pixels.length - p) / 4;
+			remaining -= count;
+
+			// Runs can span multiple rows
+			while (count > 0) {
+				int rowCount = Math.min(count, width - x);
+				target.fill(x, y, rowCount, rgba);
+				count -= rowCount;
+				x += rowCount;
+
+				if (x == width) {
+					x = 0;
+					y++;
+				}
 			}
 
-			p = setRGBA(lastColor, count, pixels, p);
+			if (y > completedY) {
+				target.rowsDecoded(completedY, y);
+				completedY = y;
+			}
 
-			if (p == pixels.length || src.remaining() < codec.getMaxInstructionSize()) {
+			if (remaining == 0 || !ensureRemaining(src, channel, maxInstructionSize)) {
 				break;
 			}
 
-			codec.postDecode(lastColor);
+			state.postDecode(lastColor);
 
 			detectFooter = isFooterCode;
 		}
+
+		state.finishDecoding();
+	}
+
+	/**
+	 * Makes sure at least {@code numBytes} bytes are available in {@code src}, refilling it from the channel
+	 * (if there is one) when necessary. Instructions are never split over a refill boundary this way.
+	 *
+	 * @return Whether the requested number of bytes are available.
+	 */
+	private static boolean ensureRemaining(ByteBuffer src, ReadableByteChannel channel, int numBytes)
+			throws IOException {
+		if (src.remaining() >= numBytes || channel == null) {
+			return src.remaining() >= numBytes;
+		}
+
+		src.compact();
+		try {
+			while (src.position() < numBytes) {
+				if (channel.read(src) < 0) {
+					break;
+				}
+			}
+		} finally {
+			src.flip();
+		}
+
+		return src.remaining() >= numBytes;
+	}
+
+	private static int toUnshiftedRGBA(int color, QoiFlowComponentFormat componentFormat) {
+		return QoiFlowColor.packRGBA((color >>> 24) << componentFormat.shiftR(),
+		                             ((color >> 16) & 0xFF) << componentFormat.shiftG(),
+		                             ((color >> 8) & 0xFF) << componentFormat.shiftB(),
+		                             (color & 0xFF) << componentFormat.shiftA());
 	}
 
-	private static int setRGBA(QoiFlowColor color, int count, byte[] pixels, int p) {
-		for (int i = count; i > 0; i--) {
-			pixels[p++] = (byte)color.a();
-			pixels[p++] = (byte)color.b();
-			pixels[p++] = (byte)color.g();
-			pixels[p++] = (byte)color.r();
+	/**
+	 * Counts the bytes read, to report the size of streamed images.
+	 */
+	private static final class CountingChannel implements ReadableByteChannel {
+		private final ReadableByteChannel channel;
+
+		private long numBytesRead = 0;
+
+		CountingChannel(ReadableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		long getNumBytesRead() {
+			return numBytesRead;
 		}
 
-		return p;
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int numBytes = channel.read(dst);
+			if (numBytes > 0) {
+				numBytesRead += numBytes;
+			}
+
+			return numBytes;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
 	}
 }
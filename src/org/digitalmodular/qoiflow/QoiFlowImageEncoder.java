@@ -6,7 +6,20 @@ import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -16,117 +29,467 @@ import java.util.Objects;
 // Changed 2022-06-18 Copied from FluidQOI
 public class QoiFlowImageEncoder {
 	@SuppressWarnings("CharUsedInArithmeticContext")
-	public static final int QOIF_MAGIC    = 'Q' << 24 |
-	                                        'O' << 16 |
-	                                        'I' << 8 |
-	                                        'F';
-	public static final int HEADER_LENGTH = 32;
+	public static final int QOIF_MAGIC          = 'Q' << 24 |
+	                                              'O' << 16 |
+	                                              'I' << 8 |
+	                                              'F';
+	/** Incremented whenever the layout of the stream changes */
+	public static final int FORMAT_VERSION      = 1;
+	/** The size of the header without the codec descriptor, which follows it */
+	public static final int FIXED_HEADER_LENGTH = 15;
 
-	private final QoiFlowStreamCodec codec;
+	/** Worst-case encoded sizes up to this amount are allocated directly, without sampling. */
+	private static final int SAMPLING_THRESHOLD = 1 << 20;
+	private static final int NUM_SAMPLE_ROWS    = 16;
+
+	private final QoiFlowStreamCodec         codec;
+	private final QoiFlowVariableLengthTuner tuner;
 
 	public QoiFlowImageEncoder(QoiFlowStreamCodec codec) {
 		this.codec = Objects.requireNonNull(codec, "'codec' can't be null");
+		tuner = null;
+	}
+
+	/**
+	 * Creates an encoder that tunes the variable lengths of the codec for every image before encoding it.
+	 * <p>
+	 * The tuned lengths are stored in the header.
+	 * This makes encoding several times slower, in exchange for smaller streams.
+	 */
+	public QoiFlowImageEncoder(QoiFlowStreamCodec codec, QoiFlowVariableLengthTuner tuner) {
+		this.codec = Objects.requireNonNull(codec, "'codec' can't be null");
+		this.tuner = Objects.requireNonNull(tuner, "'tuner' can't be null");
 	}
 
 	/**
-	 * @return A new ByteBuffer, backed by a heap array (with royally overestimated capacity).
+	 * Encodes the image to a heap buffer that is sized from a sampled estimate and grows when necessary.
+	 *
+	 * @return A view of the encoded stream, positioned at the end of the data.
+	 * The capacity can exceed the size of the data by the growth slack.
+	 * @see QoiFlowGrowableOutput#asByteBuffer()
 	 */
 	public ByteBuffer encode(BufferedImage image) {
+		return encodeToGrowableOutput(image).asByteBuffer();
+	}
+
+	/**
+	 * Encodes the image to an array of exactly the size of the encoded stream.
+	 */
+	public byte[] encodeToByteArray(BufferedImage image) {
+		return encodeToGrowableOutput(image).toByteArray();
+	}
+
+	private QoiFlowGrowableOutput encodeToGrowableOutput(BufferedImage image) {
 		Objects.requireNonNull(image, "image");
 
+		QoiFlowEncodeEvent event = new QoiFlowEncodeEvent();
+		event.start();
+
 		image = QoiFlowUtilities.asCompatibleImage(image);
 
 		QoiFlowComponentFormat componentFormat = QoiFlowImageAnalyzer.analyze(image);
-		System.out.println(componentFormat);
 
-		int width  = image.getWidth();
-		int height = image.getHeight();
+		QoiFlowGrowableOutput dst = new QoiFlowGrowableOutput(estimateEncodedSize(image, componentFormat));
+		encodeCompatibleImage(image, componentFormat, dst, event);
+		return dst;
+	}
+
+	/**
+	 * Encodes the image to a file by memory-mapping it, so the encoded stream is never held on the heap.
+	 * <p>
+	 * The stream is encoded to a temporary file next to the target, which then replaces the target.
+	 * When encoding fails, the temporary file is deleted and an existing file is left untouched.
+	 * <p>
+	 * The temporary file is mapped with the worst-case size of the stream, and truncated to the actual size afterwards.
+	 * When the worst-case size is too large to map in one piece, the file is written through a channel instead.
+	 * <p>
+	 * This doesn't work on Windows, which can't truncate or move a file while it's mapped, and Java can't unmap it.
+	 * Use {@link #encode(BufferedImage, WritableByteChannel)} there.
+	 */
+	public void encode(BufferedImage image, Path file) throws IOException {
+		Objects.requireNonNull(image, "image");
+		Objects.requireNonNull(file, "file");
+
+		image = QoiFlowUtilities.asCompatibleImage(image);
+
+		Path    tempFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), null);
+		boolean moved    = false;
+		try {
+			encodeMapped(image, tempFile);
+
+			try {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ignored) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			moved = true;
+		} finally {
+			if (!moved) {
+				Files.deleteIfExists(tempFile);
+			}
+		}
+	}
+
+	private void encodeMapped(BufferedImage image, Path file) throws IOException {
+		long worstCaseSize = getWorstCaseSize(image.getWidth(), image.getHeight());
 
-		ByteBuffer dst = ByteBuffer.allocate(HEADER_LENGTH + width * height * codec.getMaxInstructionSize());
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (worstCaseSize > Integer.MAX_VALUE) {
+				encode(image, channel);
+				return;
+			}
+
+			MappedByteBuffer        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, worstCaseSize);
+			QoiFlowByteBufferOutput dst    = new QoiFlowByteBufferOutput(buffer);
+			encodeCompatibleImage(image, dst);
+			buffer.force();
+
+			channel.truncate(dst.size());
+		}
+	}
 
-		codec.reset();
+	/**
+	 * Encodes the image straight to a channel, with constant memory use.
+	 * <p>
+	 * The channel is not closed.
+	 */
+	public void encode(BufferedImage image, WritableByteChannel channel) throws IOException {
+		Objects.requireNonNull(channel, "channel");
 
-		writeHeader(width, height, componentFormat, dst);
-		encodeImage(image, dst);
-		codec.finishEncoding(dst);
-		writeFooter(dst);
+		QoiFlowChannelOutput dst = new QoiFlowChannelOutput(channel);
+		try {
+			encode(image, dst);
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+
+		dst.flush();
+	}
+
+	/**
+	 * Encodes the image straight to a stream, with constant memory use.
+	 * <p>
+	 * The stream is not flushed or closed.
+	 */
+	public void encode(BufferedImage image, OutputStream out) throws IOException {
+		Objects.requireNonNull(out, "out");
+
+		encode(image, Channels.newChannel(out));
+	}
 
+	/**
+	 * Encodes the image to any output.
+	 */
+	public void encode(BufferedImage image, QoiFlowOutput dst) {
+		Objects.requireNonNull(image, "image");
+		Objects.requireNonNull(dst, "dst");
+
+		encodeCompatibleImage(QoiFlowUtilities.asCompatibleImage(image), dst);
+	}
+
+	/**
+	 * Encodes the image without writing anything, only counting the bytes (in total and per instruction).
+	 * <p>
+	 * This is faster than a real encode and doesn't allocate any output.
+	 * With a tuner, the instructions to query the counts with are those of the tuned codec, which isn't exposed,
+	 * so only the total is meaningful.
+	 */
+	public QoiFlowCountingOutput countEncodedBytes(BufferedImage image) {
+		QoiFlowCountingOutput dst = new QoiFlowCountingOutput();
+		encode(image, dst);
 		return dst;
 	}
 
-	private static void writeHeader(int width, int height, QoiFlowComponentFormat componentFormat, ByteBuffer dst) {
-		dst.putInt(QOIF_MAGIC);
-		dst.putInt(width);
-		dst.putInt(height);
+	private void encodeCompatibleImage(BufferedImage image, QoiFlowOutput dst) {
+		QoiFlowEncodeEvent event = new QoiFlowEncodeEvent();
+		event.start();
+
+		encodeCompatibleImage(image, QoiFlowImageAnalyzer.analyze(image), dst, event);
+	}
+
+	/**
+	 * @param event Started by the caller, so it includes the preparation of the image.
+	 */
+	private void encodeCompatibleImage(BufferedImage image,
+	                                   QoiFlowComponentFormat componentFormat,
+	                                   QoiFlowOutput dst,
+	                                   QoiFlowEncodeEvent event) {
+		int  width     = image.getWidth();
+		int  height    = image.getHeight();
+		long startSize = dst.size();
+
+		QoiFlowStreamCodec codec = tuner == null ? this.codec : tuner.tune(this.codec, image, componentFormat);
+		QoiFlowCodecState  state = codec.newState();
+		event.startCounting(codec);
+
+		QoiFlowCodecDescriptor codecDescriptor = QoiFlowCodecDescriptor.of(codec);
+		QoiFlowHeader          header          = new QoiFlowHeader(width, height, componentFormat, codecDescriptor);
+		writeHeader(QOIF_MAGIC, header, dst);
+		encodeImage(state, image, componentFormat, 0, height, dst);
+		state.finishEncoding(dst);
+		writeFooter(codec, dst);
+
+		event.finish(header, dst.size() - startSize);
+	}
+
+	/**
+	 * Estimates the encoded size by encoding a few rows spread evenly over the image.
+	 * <p>
+	 * Small images don't need sampling and just get the worst-case size.
+	 */
+	private int estimateEncodedSize(BufferedImage image, QoiFlowComponentFormat componentFormat) {
+		int  width         = image.getWidth();
+		int  height        = image.getHeight();
+		int  overhead      = getHeaderLength() + codec.getMaxInstructionSize();
+		long worstCaseSize = getWorstCaseSize(width, height);
+		if (worstCaseSize <= SAMPLING_THRESHOLD || height <= NUM_SAMPLE_ROWS) {
+			return (int)Math.min(worstCaseSize, Integer.MAX_VALUE - 8);
+		}
+
+		QoiFlowCountingOutput sampleOutput = new QoiFlowCountingOutput();
+
+		QoiFlowCodecState state = codec.newState();
+		for (int i = 0; i < NUM_SAMPLE_ROWS; i++) {
+			int y = (int)((long)(height - 1) * i / (NUM_SAMPLE_ROWS - 1));
+			encodeImage(state, image, componentFormat, y, y + 1, sampleOutput);
+		}
+
+		state.finishEncoding(sampleOutput);
+
+		// Add 1/8 slack so most images never grow.
+		long estimatedSize = sampleOutput.size() * height / NUM_SAMPLE_ROWS;
+		estimatedSize += estimatedSize / 8 + overhead;
+		return (int)Math.min(Math.min(estimatedSize, worstCaseSize), Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * Returns the size of the stream when every pixel is encoded with the largest instruction.
+	 * <p>
+	 * Runs can't exceed this, as RLE never emits more bytes than the number of pixels in the run.
+	 */
+	private long getWorstCaseSize(int width, int height) {
+		return getHeaderLength() + ((long)width * height + 1) * codec.getMaxInstructionSize();
+	}
+
+	/**
+	 * The size of the descriptor only depends on the instructions, not on the variable lengths.
+	 */
+	private int getHeaderLength() {
+		return FIXED_HEADER_LENGTH + QoiFlowCodecDescriptor.of(codec).size();
+	}
+
+	static void writeHeader(int magic, QoiFlowHeader header, QoiFlowOutput dst) {
+		QoiFlowComponentFormat componentFormat = header.componentFormat();
+
+		dst.putInt(magic);
+		dst.put((byte)FORMAT_VERSION);
+		dst.putInt(header.width());
+		dst.putInt(header.height());
 		dst.put((byte)(componentFormat.bitsR() << 4 | componentFormat.bitsG()));
 		dst.put((byte)(componentFormat.bitsB() << 4 | componentFormat.bitsA()));
-
-		// TODO write instruction table
+		header.codecDescriptor().write(dst);
 	}
 
-	private void encodeImage(BufferedImage image, ByteBuffer dst) {
+	/**
+	 * Encodes the rows in the range [{@code startY}, {@code endY}).
+	 * <p>
+	 * Components are shifted right by their unused low bits (according to the component format) before encoding,
+	 * so reduced bit-depth images get proportionally smaller differences between pixels.
+	 */
+	static void encodeImage(QoiFlowCodecState state,
+	                        BufferedImage image,
+	                        QoiFlowComponentFormat componentFormat,
+	                        int startY,
+	                        int endY,
+	                        QoiFlowOutput dst) {
 		DataBuffer dataBuffer = image.getRaster().getDataBuffer();
 		if (dataBuffer instanceof DataBufferByte) {
-			encodeComponentColorModelImage(image, dst);
+			encodeComponentColorModelImage(state, image, componentFormat, startY, endY, dst);
 		} else if (dataBuffer instanceof DataBufferInt) {
-			encodeDirectColorModelImage(image, dst);
+			encodeDirectColorModelImage(state, image, componentFormat, startY, endY, dst);
 		} else {
 			throw new AssertionError("Analyzer returned invalid image: " + image);
 		}
 	}
 
-	private void encodeComponentColorModelImage(BufferedImage image, ByteBuffer dst) {
+	private static void encodeComponentColorModelImage(
+			QoiFlowCodecState state,
+			BufferedImage image,
+			QoiFlowComponentFormat componentFormat,
+			int startY,
+			int endY,
+			QoiFlowOutput dst) {
+		int shiftR = componentFormat.shiftR();
+		int shiftG = componentFormat.shiftG();
+		int shiftB = componentFormat.shiftB();
+		int shiftA = componentFormat.shiftA();
+
 		byte[] samples     = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
 		int[]  bandOffsets = ((ComponentSampleModel)image.getSampleModel()).getBandOffsets();
+		int    rowLength   = image.getWidth() * bandOffsets.length;
 
-		int p = 0;
+		int p   = startY * rowLength;
+		int end = endY * rowLength;
 		if (bandOffsets.length == 4) {
-			while (p < samples.length) {
-				byte r = samples[p + bandOffsets[0]];
-				byte g = samples[p + bandOffsets[1]];
-				byte b = samples[p + bandOffsets[2]];
-				byte a = samples[p + bandOffsets[3]];
-				codec.encode(new QoiFlowColor(r, g, b, a), dst);
+			int offsetR = bandOffsets[0];
+			int offsetG = bandOffsets[1];
+			int offsetB = bandOffsets[2];
+			int offsetA = bandOffsets[3];
+			while (p < end) {
+				int r = (samples[p + offsetR] & 0xFF) >> shiftR;
+				int g = (samples[p + offsetG] & 0xFF) >> shiftG;
+				int b = (samples[p + offsetB] & 0xFF) >> shiftB;
+				int a = (samples[p + offsetA] & 0xFF) >> shiftA;
+				state.encode(r << 24 | g << 16 | b << 8 | a, dst);
 				p += 4;
+
+				if (p < end && isRepeatedPixel(samples, p, 4)) {
+					int runEnd = findRunEnd(samples, p, end, 4);
+					state.encodeRepeats((runEnd - p) / 4, dst);
+					p = runEnd;
+				}
 			}
 		} else if (bandOffsets.length == 3) {
-			while (p < samples.length) {
-				byte r = samples[p + bandOffsets[0]];
-				byte g = samples[p + bandOffsets[1]];
-				byte b = samples[p + bandOffsets[2]];
-				codec.encode(new QoiFlowColor(r, g, b, (byte)255), dst);
+			int offsetR = bandOffsets[0];
+			int offsetG = bandOffsets[1];
+			int offsetB = bandOffsets[2];
+			while (p < end) {
+				int r = (samples[p + offsetR] & 0xFF) >> shiftR;
+				int g = (samples[p + offsetG] & 0xFF) >> shiftG;
+				int b = (samples[p + offsetB] & 0xFF) >> shiftB;
+				state.encode(r << 24 | g << 16 | b << 8 | 0xFF, dst);
 				p += 3;
+
+				if (p < end && isRepeatedPixel(samples, p, 3)) {
+					int runEnd = findRunEnd(samples, p, end, 3);
+					state.encodeRepeats((runEnd - p) / 3, dst);
+					p = runEnd;
+				}
 			}
 		} else {
 			throw new AssertionError("Analyzer returned invalid image: " + image);
 		}
 	}
 
-	private void encodeDirectColorModelImage(BufferedImage image, ByteBuffer dst) {
+	private static void encodeDirectColorModelImage(
+			QoiFlowCodecState state,
+			BufferedImage image,
+			QoiFlowComponentFormat componentFormat,
+			int startY,
+			int endY,
+			QoiFlowOutput dst) {
+		int shiftR = componentFormat.shiftR();
+		int shiftG = componentFormat.shiftG();
+		int shiftB = componentFormat.shiftB();
+		int shiftA = componentFormat.shiftA();
+
 		int[] pixels     = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
 		int[] bitOffsets = ((SinglePixelPackedSampleModel)image.getSampleModel()).getBitOffsets();
+		int   start      = startY * image.getWidth();
+		int   end        = endY * image.getWidth();
+
+		// Bits outside the components (like the top byte of TYPE_INT_RGB) don't break runs.
+		int componentMask = 0;
+		for (int bitOffset : bitOffsets) {
+			componentMask |= 0xFF << bitOffset;
+		}
 
 		if (bitOffsets.length == 4) {
-			for (int pixel : pixels) {
-				byte r = (byte)(pixel >> bitOffsets[0]);
-				byte g = (byte)(pixel >> bitOffsets[1]);
-				byte b = (byte)(pixel >> bitOffsets[2]);
-				byte a = (byte)(pixel >> bitOffsets[3]);
-				codec.encode(new QoiFlowColor(r, g, b, a), dst);
+			int offsetR = bitOffsets[0];
+			int offsetG = bitOffsets[1];
+			int offsetB = bitOffsets[2];
+			int offsetA = bitOffsets[3];
+			for (int i = start; i < end; i++) {
+				int pixel = pixels[i];
+				int r = ((pixel >>> offsetR) & 0xFF) >> shiftR;
+				int g = ((pixel >>> offsetG) & 0xFF) >> shiftG;
+				int b = ((pixel >>> offsetB) & 0xFF) >> shiftB;
+				int a = ((pixel >>> offsetA) & 0xFF) >> shiftA;
+				state.encode(r << 24 | g << 16 | b << 8 | a, dst);
+
+				if (i + 1 < end && ((pixels[i + 1] ^ pixel) & componentMask) == 0) {
+					int runEnd = findRunEnd(pixels, i + 1, end, componentMask);
+					state.encodeRepeats(runEnd - i - 1, dst);
+					i = runEnd - 1;
+				}
 			}
 		} else if (bitOffsets.length == 3) {
-			for (int pixel : pixels) {
-				byte r = (byte)(pixel >> bitOffsets[0]);
-				byte g = (byte)(pixel >> bitOffsets[1]);
-				byte b = (byte)(pixel >> bitOffsets[2]);
-				codec.encode(new QoiFlowColor(r, g, b, (byte)255), dst);
+			int offsetR = bitOffsets[0];
+			int offsetG = bitOffsets[1];
+			int offsetB = bitOffsets[2];
+			for (int i = start; i < end; i++) {
+				int pixel = pixels[i];
+				int r = ((pixel >>> offsetR) & 0xFF) >> shiftR;
+				int g = ((pixel >>> offsetG) & 0xFF) >> shiftG;
+				int b = ((pixel >>> offsetB) & 0xFF) >> shiftB;
+				state.encode(r << 24 | g << 16 | b << 8 | 0xFF, dst);
+
+				if (i + 1 < end && ((pixels[i + 1] ^ pixel) & componentMask) == 0) {
+					int runEnd = findRunEnd(pixels, i + 1, end, componentMask);
+					state.encodeRepeats(runEnd - i - 1, dst);
+					i = runEnd - 1;
+				}
 			}
 		} else {
 			throw new AssertionError("Analyzer returned invalid image: " + image.getSampleModel());
 		}
 	}
 
-	private void writeFooter(ByteBuffer dst) {
+	/**
+	 * Returns whether the pixel at {@code p} is the same as the one before it.
+	 */
+	private static boolean isRepeatedPixel(byte[] samples, int p, int pixelSize) {
+		for (int i = 0; i < pixelSize; i++) {
+			if (samples[p + i] != samples[p + i - pixelSize]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the position of the first pixel at or after {@code p} that differs from the one before it,
+	 * or {@code end} if there is none.
+	 * <p>
+	 * {@link Arrays#mismatch(byte[], int, int, byte[], int, int)} compares many bytes at a time,
+	 * so long runs are skipped much faster than pixel by pixel.
+	 */
+	private static int findRunEnd(byte[] samples, int p, int end, int pixelSize) {
+		int mismatch = Arrays.mismatch(samples, p, end, samples, p - pixelSize, end - pixelSize);
+		if (mismatch < 0) {
+			return end;
+		}
+
+		return p + mismatch / pixelSize * pixelSize;
+	}
+
+	/**
+	 * Returns the index of the first pixel at or after {@code i} whose components differ from the one before it,
+	 * or {@code end} if there is none.
+	 */
+	private static int findRunEnd(int[] pixels, int i, int end, int componentMask) {
+		int runPixel = pixels[i - 1];
+		while (i < end) {
+			int mismatch = Arrays.mismatch(pixels, i, end, pixels, i - 1, end - 1);
+			if (mismatch < 0) {
+				return end;
+			}
+
+			i += mismatch;
+			if (((pixels[i] ^ runPixel) & componentMask) != 0) {
+				return i;
+			}
+
+			// Only bits outside the components changed.
+			i++;
+		}
+
+		return end;
+	}
+
+	static void writeFooter(QoiFlowStreamCodec codec, QoiFlowOutput dst) {
 		int  maxInstructionSize = codec.getMaxInstructionSize();
 		byte footerCode         = codec.getFooterCode();
 
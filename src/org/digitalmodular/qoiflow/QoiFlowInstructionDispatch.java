@@ -0,0 +1,180 @@
+package org.digitalmodular.qoiflow;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionChroma;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionColorHistory;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionDelta;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionMaskRGBA;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionRGBA;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionRunLength;
+
+/**
+ * Calls instructions without megamorphic virtual calls.
+ * <p>
+ * The codec state calls the same few methods on 4 to 7 different instruction classes for every pixel.
+ * Called through {@link QoiFlowInstruction}, those call sites see all the classes, so the JIT can't inline them.
+ * Instead, every instruction gets a kind, and the static methods here switch on it and cast to the exact class,
+ * so every call site sees only one class.
+ * Instructions of other classes (user-defined ones) are still called virtually.
+ * <p>
+ * Also, hooks that an instruction doesn't override are not called at all,
+ * instead of calling the empty default method for every instruction for every pixel.
+ * <p>
+ * This depends only on the classes of the instructions, not on the code offsets, so it's created once per codec,
+ * and shared by all its streams.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-07-02
+final class QoiFlowInstructionDispatch {
+	private static final int GENERIC       = 0;
+	private static final int RUN_LENGTH    = 1;
+	private static final int COLOR_HISTORY = 2;
+	private static final int DELTA         = 3;
+	private static final int CHROMA        = 4;
+	private static final int MASK_RGBA     = 5;
+	private static final int RGBA          = 6;
+
+	/** The kind of every instruction, by instruction index. */
+	final int[] kinds;
+
+	/** The indices of the instructions that override each hook, in order. */
+	final int[] preEncoders;
+	final int[] postEncoders;
+	final int[] postDecoders;
+
+	/**
+	 * Whether a repeated color always goes straight to the run-length instruction, without touching any other
+	 * instruction. This is the case when it's the first instruction, and the only one with a pre-encode hook.
+	 */
+	final boolean canSkipRuns;
+
+	QoiFlowInstructionDispatch(List<QoiFlowInstruction> instructions) {
+		kinds = new int[instructions.size()];
+		for (int i = 0; i < kinds.length; i++) {
+			kinds[i] = kindOf(instructions.get(i));
+		}
+
+		preEncoders = findOverriders(instructions, "preEncode", int.class, int.class, QoiFlowOutput.class);
+		postEncoders = findOverriders(instructions, "postEncode", QoiFlowOutput.class);
+		postDecoders = findOverriders(instructions, "postDecode", int.class);
+
+		canSkipRuns = kinds[0] == RUN_LENGTH && Arrays.stream(preEncoders).allMatch(i -> kinds[i] == RUN_LENGTH);
+	}
+
+	/**
+	 * Subclasses of the built-in instructions can override anything, so only exact classes get their own kind.
+	 */
+	private static int kindOf(QoiFlowInstruction instruction) {
+		Class<?> type = instruction.getClass();
+		if (type == QoiFlowInstructionRunLength.class) {
+			return RUN_LENGTH;
+		} else if (type == QoiFlowInstructionColorHistory.class) {
+			return COLOR_HISTORY;
+		} else if (type == QoiFlowInstructionDelta.class) {
+			return DELTA;
+		} else if (type == QoiFlowInstructionChroma.class) {
+			return CHROMA;
+		} else if (type == QoiFlowInstructionMaskRGBA.class) {
+			return MASK_RGBA;
+		} else if (type == QoiFlowInstructionRGBA.class) {
+			return RGBA;
+		} else {
+			return GENERIC;
+		}
+	}
+
+	private static int[] findOverriders(List<QoiFlowInstruction> instructions,
+	                                    String methodName,
+	                                    Class<?>... parameterTypes) {
+		int[] indices = new int[instructions.size()];
+		int   count   = 0;
+		for (int i = 0; i < indices.length; i++) {
+			if (overrides(instructions.get(i), methodName, parameterTypes)) {
+				indices[count++] = i;
+			}
+		}
+
+		return Arrays.copyOf(indices, count);
+	}
+
+	private static boolean overrides(QoiFlowInstruction instruction, String methodName, Class<?>... parameterTypes) {
+		try {
+			return instruction.getClass().getMethod(methodName, parameterTypes).getDeclaringClass() !=
+			       QoiFlowInstruction.class;
+		} catch (NoSuchMethodException ex) {
+			throw new AssertionError(ex);
+		}
+	}
+
+	static void preEncode(int kind, QoiFlowInstruction instruction, int previous, int color, QoiFlowOutput dst) {
+		if (kind == RUN_LENGTH) {
+			((QoiFlowInstructionRunLength)instruction).preEncode(previous, color, dst);
+		} else {
+			instruction.preEncode(previous, color, dst);
+		}
+	}
+
+	static int encode(int kind, QoiFlowInstruction instruction, int previous, int color, byte[] dst) {
+		switch (kind) {
+			case RUN_LENGTH:
+				return ((QoiFlowInstructionRunLength)instruction).encode(previous, color, dst);
+			case COLOR_HISTORY:
+				return ((QoiFlowInstructionColorHistory)instruction).encode(previous, color, dst);
+			case DELTA:
+				return ((QoiFlowInstructionDelta)instruction).encode(previous, color, dst);
+			case CHROMA:
+				return ((QoiFlowInstructionChroma)instruction).encode(previous, color, dst);
+			case MASK_RGBA:
+				return ((QoiFlowInstructionMaskRGBA)instruction).encode(previous, color, dst);
+			case RGBA:
+				return ((QoiFlowInstructionRGBA)instruction).encode(previous, color, dst);
+			default:
+				return instruction.encode(previous, color, dst);
+		}
+	}
+
+	/**
+	 * Only valid when {@link #canSkipRuns}, for the first instruction.
+	 */
+	static void encodeRepeats(QoiFlowInstruction instruction, int color, int count) {
+		((QoiFlowInstructionRunLength)instruction).encodeRepeats(color, count);
+	}
+
+	static long decode(int kind, QoiFlowInstruction instruction, int localCode, ByteBuffer src, int lastColor) {
+		switch (kind) {
+			case RUN_LENGTH:
+				return ((QoiFlowInstructionRunLength)instruction).decode(localCode, src, lastColor);
+			case COLOR_HISTORY:
+				return ((QoiFlowInstructionColorHistory)instruction).decode(localCode, src, lastColor);
+			case DELTA:
+				return ((QoiFlowInstructionDelta)instruction).decode(localCode, src, lastColor);
+			case CHROMA:
+				return ((QoiFlowInstructionChroma)instruction).decode(localCode, src, lastColor);
+			case MASK_RGBA:
+				return ((QoiFlowInstructionMaskRGBA)instruction).decode(localCode, src, lastColor);
+			case RGBA:
+				return ((QoiFlowInstructionRGBA)instruction).decode(localCode, src, lastColor);
+			default:
+				return instruction.decode(localCode, src, lastColor);
+		}
+	}
+
+	static void postDecode(int kind, QoiFlowInstruction instruction, int color) {
+		switch (kind) {
+			case RUN_LENGTH:
+				((QoiFlowInstructionRunLength)instruction).postDecode(color);
+				break;
+			case COLOR_HISTORY:
+				((QoiFlowInstructionColorHistory)instruction).postDecode(color);
+				break;
+			default:
+				instruction.postDecode(color);
+				break;
+		}
+	}
+}
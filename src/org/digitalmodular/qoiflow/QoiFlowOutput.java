@@ -0,0 +1,44 @@
+package org.digitalmodular.qoiflow;
+
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
+
+/**
+ * Destination of an encoded QOIFlow stream.
+ * <p>
+ * The codec emits instructions one at a time, so implementations are free to decide where the bytes go and when.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-27
+public interface QoiFlowOutput {
+	void put(byte value);
+
+	void put(byte[] src, int offset, int length);
+
+	/**
+	 * Writes an int in big-endian order.
+	 */
+	default void putInt(int value) {
+		put((byte)(value >> 24));
+		put((byte)(value >> 16));
+		put((byte)(value >> 8));
+		put((byte)value);
+	}
+
+	/**
+	 * Writes the bytes of one encoded instruction.
+	 * <p>
+	 * By default this is the same as {@link #put(byte[], int, int)}.
+	 * Outputs that keep track of the instructions (like {@link QoiFlowCountingOutput}) can override this.
+	 *
+	 * @param instruction The instruction that encoded the bytes
+	 */
+	default void putInstruction(QoiFlowInstruction instruction, byte[] src, int offset, int length) {
+		put(src, offset, length);
+	}
+
+	/**
+	 * Returns the total number of bytes written so far.
+	 */
+	long size();
+}
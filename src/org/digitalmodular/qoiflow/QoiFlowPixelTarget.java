@@ -0,0 +1,386 @@
+package org.digitalmodular.qoiflow;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Where the decoder stores pixels.
+ * <p>
+ * Pixels are addressed as {@code offset + y * stride + x * pixelSize}, where the stride and offset are in array
+ * elements (so in {@code int}s for {@code int} targets).
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-07-02
+abstract class QoiFlowPixelTarget {
+	/**
+	 * Runs at least this long are stored by copying the first pixel, instead of pixel by pixel.
+	 */
+	private static final int MIN_COPIED_RUN = 16;
+
+	/**
+	 * Stores a 4-byte pixel at once, with the first byte in the lowest 8 bits.
+	 */
+	private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	protected final int offset;
+	protected final int stride;
+
+	protected QoiFlowPixelTarget(int offset, int stride) {
+		this.offset = offset;
+		this.stride = stride;
+	}
+
+	/**
+	 * Stores into the pixels of a {@link QoiFlowImageDecoder#createImage(int, int, QoiFlowComponentFormat, int)
+	 * decoder-created} image, optionally reporting completed scanlines.
+	 *
+	 * @param listener May be {@code null}.
+	 */
+	static QoiFlowPixelTarget of(BufferedImage image, QoiFlowScanlineListener listener) {
+		QoiFlowPixelTarget target = ofImage(image);
+		if (listener == null) {
+			return target;
+		}
+
+		return new QoiFlowPixelTarget(target.offset, target.stride) {
+			@Override
+			int getPixelSize() {
+				return target.getPixelSize();
+			}
+
+			@Override
+			int getLength() {
+				return target.getLength();
+			}
+
+			@Override
+			void fill(int x, int y, int count, int rgba) {
+				target.fill(x, y, count, rgba);
+			}
+
+			@Override
+			void rowsDecoded(int startY, int endY) {
+				listener.scanlinesDecoded(image, startY, endY);
+			}
+		};
+	}
+
+	private static QoiFlowPixelTarget ofImage(BufferedImage image) {
+		DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+		int        width      = image.getWidth();
+
+		switch (image.getType()) {
+			case BufferedImage.TYPE_4BYTE_ABGR:
+				return new ByteArrayTarget(
+						((DataBufferByte)dataBuffer).getData(), 0, width * 4, QoiFlowComponentOrder.ABGR);
+			case BufferedImage.TYPE_3BYTE_BGR:
+				return new ByteArrayTarget(
+						((DataBufferByte)dataBuffer).getData(), 0, width * 3, QoiFlowComponentOrder.BGR);
+			case BufferedImage.TYPE_INT_RGB:
+				return new IntArrayTarget(((DataBufferInt)dataBuffer).getData(), 0, width, QoiFlowComponentOrder.RGB);
+			default:
+				throw new AssertionError("Decoder created an unsupported image: " + image);
+		}
+	}
+
+	/**
+	 * Stores only the pixels inside a region of the image, translated so the top-left corner of the region ends up
+	 * at (0, 0) in the target.
+	 */
+	static QoiFlowPixelTarget ofRegion(QoiFlowPixelTarget target, int regionX, int regionY, int width, int height) {
+		int regionEndX = regionX + width;
+		int regionEndY = regionY + height;
+
+		return new QoiFlowPixelTarget(target.offset, target.stride) {
+			@Override
+			int getPixelSize() {
+				return target.getPixelSize();
+			}
+
+			@Override
+			int getLength() {
+				return target.getLength();
+			}
+
+			@Override
+			void fill(int x, int y, int count, int rgba) {
+				if (y < regionY || y >= regionEndY) {
+					return;
+				}
+
+				int startX = Math.max(x, regionX);
+				int endX   = Math.min(x + count, regionEndX);
+				if (startX < endX) {
+					target.fill(startX - regionX, y - regionY, endX - startX, rgba);
+				}
+			}
+		};
+	}
+
+	static QoiFlowPixelTarget of(int[] pixels, int offset, int stride, QoiFlowComponentOrder order) {
+		Objects.requireNonNull(pixels, "pixels");
+		Objects.requireNonNull(order, "order");
+
+		return new IntArrayTarget(pixels, offset, stride, order);
+	}
+
+	static QoiFlowPixelTarget of(byte[] pixels, int offset, int stride, QoiFlowComponentOrder order) {
+		Objects.requireNonNull(pixels, "pixels");
+		Objects.requireNonNull(order, "order");
+
+		return new ByteArrayTarget(pixels, offset, stride, order);
+	}
+
+	static QoiFlowPixelTarget of(ByteBuffer pixels, int offset, int stride, QoiFlowComponentOrder order) {
+		Objects.requireNonNull(pixels, "pixels");
+		Objects.requireNonNull(order, "order");
+		if (pixels.isReadOnly()) {
+			throw new IllegalArgumentException("'pixels' can't be read-only");
+		}
+
+		return new ByteBufferTarget(pixels, offset, stride, order);
+	}
+
+	/**
+	 * Checks that an image of the given size fits, before anything is stored.
+	 *
+	 * @throws IllegalArgumentException when it doesn't fit.
+	 */
+	void validate(int width, int height) {
+		int pixelSize = getPixelSize();
+
+		if (offset < 0) {
+			throw new IllegalArgumentException("'offset' can't be negative: " + offset);
+		} else if (stride < width * pixelSize) {
+			throw new IllegalArgumentException("'stride' is too small for the image width (" + width + "): " + stride);
+		}
+
+		if (width > 0 && height > 0) {
+			long end = offset + (long)(height - 1) * stride + (long)width * pixelSize;
+			if (end > getLength()) {
+				throw new IllegalArgumentException(
+						"The target is too small for a " + width + "x" + height + " image: " + getLength());
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of array elements per pixel.
+	 */
+	abstract int getPixelSize();
+
+	/**
+	 * Returns the number of array elements in the target.
+	 */
+	abstract int getLength();
+
+	/**
+	 * Stores the same color into {@code count} consecutive pixels of one row, starting at ({@code x}, {@code y}).
+	 *
+	 * @param rgba The color, packed as {@code 0xRRGGBBAA}
+	 */
+	abstract void fill(int x, int y, int count, int rgba);
+
+	/**
+	 * Called when the rows in the range [{@code startY}, {@code endY}) are final.
+	 * <p>
+	 * Does nothing unless overridden.
+	 */
+	void rowsDecoded(int startY, int endY) {
+	}
+
+	/**
+	 * Packs a color into the byte order of a 4-byte pixel, with the byte at offset 0 in the lowest 8 bits.
+	 */
+	private static int toLittleEndianPixel(int rgba, QoiFlowComponentOrder order) {
+		return (rgba >>> 24) << (order.offsetR() * 8) |
+		       (rgba >> 16 & 0xFF) << (order.offsetG() * 8) |
+		       (rgba >> 8 & 0xFF) << (order.offsetB() * 8) |
+		       (rgba & 0xFF) << (order.offsetA() * 8);
+	}
+
+	private static final class IntArrayTarget extends QoiFlowPixelTarget {
+		private final int[] pixels;
+
+		// Where each component goes in the packed int, or -1 to drop it.
+		private final int shiftR;
+		private final int shiftG;
+		private final int shiftB;
+		private final int shiftA;
+
+		IntArrayTarget(int[] pixels, int offset, int stride, QoiFlowComponentOrder order) {
+			super(offset, stride);
+			this.pixels = pixels;
+
+			int last = order.numComponents() - 1;
+			shiftR = (last - order.offsetR()) * 8;
+			shiftG = (last - order.offsetG()) * 8;
+			shiftB = (last - order.offsetB()) * 8;
+			shiftA = order.hasAlpha() ? (last - order.offsetA()) * 8 : -1;
+		}
+
+		@Override
+		int getPixelSize() {
+			return 1;
+		}
+
+		@Override
+		int getLength() {
+			return pixels.length;
+		}
+
+		@Override
+		void fill(int x, int y, int count, int rgba) {
+			int packed = (rgba >>> 24) << shiftR |
+			             (rgba >> 16 & 0xFF) << shiftG |
+			             (rgba >> 8 & 0xFF) << shiftB;
+			if (shiftA >= 0) {
+				packed |= (rgba & 0xFF) << shiftA;
+			}
+
+			int p = offset + y * stride + x;
+			Arrays.fill(pixels, p, p + count, packed);
+		}
+	}
+
+	private static final class ByteArrayTarget extends QoiFlowPixelTarget {
+		private final byte[] pixels;
+
+		private final QoiFlowComponentOrder order;
+		private final int                   pixelSize;
+		private final int                   offsetR;
+		private final int                   offsetG;
+		private final int                   offsetB;
+		private final boolean               hasAlpha;
+
+		ByteArrayTarget(byte[] pixels, int offset, int stride, QoiFlowComponentOrder order) {
+			super(offset, stride);
+			this.pixels = pixels;
+			this.order = order;
+
+			pixelSize = order.numComponents();
+			offsetR = order.offsetR();
+			offsetG = order.offsetG();
+			offsetB = order.offsetB();
+			hasAlpha = order.hasAlpha();
+		}
+
+		@Override
+		int getPixelSize() {
+			return pixelSize;
+		}
+
+		@Override
+		int getLength() {
+			return pixels.length;
+		}
+
+		@Override
+		void fill(int x, int y, int count, int rgba) {
+			int start     = offset + y * stride + x * pixelSize;
+			int numStored = count < MIN_COPIED_RUN ? count : 1;
+			int end       = start + numStored * pixelSize;
+
+			if (hasAlpha) {
+				int pixel = toLittleEndianPixel(rgba, order);
+				for (int p = start; p < end; p += 4) {
+					INTS.set(pixels, p, pixel);
+				}
+			} else {
+				byte r = (byte)(rgba >>> 24);
+				byte g = (byte)(rgba >> 16);
+				byte b = (byte)(rgba >> 8);
+				for (int p = start; p < end; p += pixelSize) {
+					pixels[p + offsetR] = r;
+					pixels[p + offsetG] = g;
+					pixels[p + offsetB] = b;
+				}
+			}
+
+			// Copy what's already stored, doubling every time, so long runs take only a few copies.
+			int length = count * pixelSize;
+			for (int copied = end - start; copied < length; copied += copied) {
+				System.arraycopy(pixels, start, pixels, start + copied, Math.min(copied, length - copied));
+			}
+		}
+	}
+
+	private static final class ByteBufferTarget extends QoiFlowPixelTarget {
+		private final ByteBuffer pixels;
+
+		private final QoiFlowComponentOrder order;
+		private final int                   pixelSize;
+		private final int                   offsetR;
+		private final int                   offsetG;
+		private final int                   offsetB;
+		private final boolean               hasAlpha;
+
+		ByteBufferTarget(ByteBuffer pixels, int offset, int stride, QoiFlowComponentOrder order) {
+			super(offset, stride);
+			this.pixels = pixels;
+			this.order = order;
+
+			pixelSize = order.numComponents();
+			offsetR = order.offsetR();
+			offsetG = order.offsetG();
+			offsetB = order.offsetB();
+			hasAlpha = order.hasAlpha();
+		}
+
+		@Override
+		int getPixelSize() {
+			return pixelSize;
+		}
+
+		/**
+		 * Absolute puts ignore the position, but not the limit.
+		 */
+		@Override
+		int getLength() {
+			return pixels.limit();
+		}
+
+		@Override
+		void fill(int x, int y, int count, int rgba) {
+			int start     = offset + y * stride + x * pixelSize;
+			int numStored = count < MIN_COPIED_RUN ? count : 1;
+			int end       = start + numStored * pixelSize;
+
+			if (hasAlpha) {
+				// The byte order of the buffer can change at any time.
+				int pixel = toLittleEndianPixel(rgba, order);
+				if (pixels.order() == ByteOrder.BIG_ENDIAN) {
+					pixel = Integer.reverseBytes(pixel);
+				}
+
+				for (int p = start; p < end; p += 4) {
+					pixels.putInt(p, pixel);
+				}
+			} else {
+				byte r = (byte)(rgba >>> 24);
+				byte g = (byte)(rgba >> 16);
+				byte b = (byte)(rgba >> 8);
+				for (int p = start; p < end; p += pixelSize) {
+					pixels.put(p + offsetR, r);
+					pixels.put(p + offsetG, g);
+					pixels.put(p + offsetB, b);
+				}
+			}
+
+			// Copy what's already stored, doubling every time, so long runs take only a few copies.
+			int length = count * pixelSize;
+			for (int copied = end - start; copied < length; copied += copied) {
+				pixels.put(start + copied, pixels, start, Math.min(copied, length - copied));
+			}
+		}
+	}
+}
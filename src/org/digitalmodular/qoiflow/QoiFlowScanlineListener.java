@@ -0,0 +1,20 @@
+package org.digitalmodular.qoiflow;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives scanlines as soon as they are completely decoded.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-28
+@FunctionalInterface
+public interface QoiFlowScanlineListener {
+	/**
+	 * Called when the rows in the range [{@code startY}, {@code endY}) of the image are final.
+	 * <p>
+	 * The rest of the image is still being decoded, and should not be accessed yet.
+	 * Rows are reported in order, and every row is reported exactly once.
+	 */
+	void scanlinesDecoded(BufferedImage image, int startY, int endY);
+}
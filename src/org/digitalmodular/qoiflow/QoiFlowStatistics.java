@@ -1,14 +1,26 @@
 package org.digitalmodular.qoiflow;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
 import org.digitalmodular.util.HexUtilities;
 import static org.digitalmodular.util.Validators.requireAtLeast;
 
 /**
+ * Counts how often each instruction is used, and how many pixels and bytes it accounts for.
+ * <p>
+ * Every instruction gets a slot when the statistics are given to it (see
+ * {@link QoiFlowInstruction#setStatistics(QoiFlowStatistics)}), and instructions with the same name share a slot.
+ * Counting is lock-free and doesn't allocate, so one object can be shared by codecs on many threads.
+ * <p>
+ * Recording individual instructions (see {@link #setDumpIndividualInstructions(boolean)}) is for debugging only.
+ * It prints every instruction, so it's slow and its output is interleaved when multiple threads record.
+ *
  * @author Mark Jeronimus
  */
 // Created 2022-06-13
@@ -18,8 +30,22 @@ public class QoiFlowStatistics {
 	private int     maxNameLength              = 0;
 	private boolean dumpIndividualInstructions = false;
 
-	/** Instruction name -> single-element array */
-	private final Map<String, int[]> instructionCounts = new TreeMap<>();
+	/** Instruction name -> slot. Only used to register instructions, which is synchronized. */
+	private final    Map<String, Integer> slotsByName = new HashMap<>();
+	private volatile String[]             slotNames   = new String[0];
+	private volatile Counters[]           counters    = new Counters[0];
+
+	private static final class Counters {
+		final LongAdder numInstructions = new LongAdder();
+		final LongAdder numPixels       = new LongAdder();
+		final LongAdder numBytes        = new LongAdder();
+
+		void reset() {
+			numInstructions.reset();
+			numPixels.reset();
+			numBytes.reset();
+		}
+	}
 
 	public void setMaxInstructionSize(int maxInstructionSize) {
 		this.maxInstructionSize = requireAtLeast(1, maxInstructionSize, "maxInstructionSize");
@@ -37,22 +63,94 @@ public class QoiFlowStatistics {
 		this.dumpIndividualInstructions = dumpIndividualInstructions;
 	}
 
+	/**
+	 * Returns the slot to count the instruction with the given name in, adding one if it's new.
+	 * <p>
+	 * Normally this should not be called by the user, as {@link QoiFlowInstruction#setStatistics(QoiFlowStatistics)}
+	 * does this.
+	 */
+	public synchronized int registerInstruction(String instructionName) {
+		Integer slot = slotsByName.get(instructionName);
+		if (slot != null) {
+			return slot;
+		}
+
+		int newSlot = counters.length;
+		slotsByName.put(instructionName, newSlot);
+
+		// Copy-on-write, so count() doesn't need to synchronize.
+		String[]   newSlotNames = Arrays.copyOf(slotNames, newSlot + 1);
+		Counters[] newCounters  = Arrays.copyOf(counters, newSlot + 1);
+		newSlotNames[newSlot] = instructionName;
+		newCounters[newSlot] = new Counters();
+		slotNames = newSlotNames;
+		counters = newCounters;
+
+		return newSlot;
+	}
+
+	/**
+	 * Counts one encoded or decoded instruction.
+	 *
+	 * @param slot A slot returned by {@link #registerInstruction(String)}.
+	 */
+	public void count(int slot, int numPixels, int numBytes) {
+		Counters slotCounters = counters[slot];
+		slotCounters.numInstructions.increment();
+		slotCounters.numPixels.add(numPixels);
+		slotCounters.numBytes.add(numBytes);
+	}
+
+	/**
+	 * Adds the counts of another statistics object to this one.
+	 * <p>
+	 * This only takes a few additions per instruction, so it's cheap enough to aggregate statistics per image.
+	 */
 	public void add(QoiFlowStatistics other) {
 		maxInstructionSize = other.maxInstructionSize;
 		maxNameLength = other.maxNameLength;
 
-		for (Map.Entry<String, int[]> entry : other.instructionCounts.entrySet()) {
-			int[] count = instructionCounts.computeIfAbsent(entry.getKey(), ignored -> new int[1]);
-			count[0] += entry.getValue()[0];
+		String[]   otherSlotNames = other.slotNames;
+		Counters[] otherCounters  = other.counters;
+		for (int otherSlot = 0; otherSlot < otherSlotNames.length; otherSlot++) {
+			int      slot              = registerInstruction(otherSlotNames[otherSlot]);
+			Counters slotCounters      = counters[slot];
+			Counters otherSlotCounters = otherCounters[otherSlot];
+			slotCounters.numInstructions.add(otherSlotCounters.numInstructions.sum());
+			slotCounters.numPixels.add(otherSlotCounters.numPixels.sum());
+			slotCounters.numBytes.add(otherSlotCounters.numBytes.sum());
 		}
 	}
 
+	/**
+	 * Sets all counts to zero. Registered instructions keep their slots.
+	 */
 	public void reset() {
-		instructionCounts.clear();
+		for (Counters slotCounters : counters) {
+			slotCounters.reset();
+		}
 	}
 
+	/**
+	 * Prints an instruction that was just read from {@code src}, which can be a heap, direct or mapped buffer.
+	 * <p>
+	 * This doesn't count it. Instructions only call this when {@link #isDumpIndividualInstructions()} is set.
+	 */
 	public void record(QoiFlowInstruction instruction, ByteBuffer src, int len, QoiFlowColor color, int... parameters) {
-		record(instruction, src.array(), src.position() - len, len, color, parameters);
+		if (src.hasArray()) {
+			record(instruction, src.array(), src.arrayOffset() + src.position() - len, len, color, parameters);
+		} else {
+			record(instruction, copyRecentBytes(src, len), 0, len, color, parameters);
+		}
+	}
+
+	/**
+	 * Returns a copy of the last {@code len} bytes before the position of the buffer, without moving the position.
+	 */
+	public static byte[] copyRecentBytes(ByteBuffer src, int len) {
+		byte[] data = new byte[len];
+		src.get(src.position() - len, data);
+		return data;
 	}
 
 	public void record(
@@ -62,17 +160,11 @@ public class QoiFlowStatistics {
 		if (maxNameLength == 0)
 			throw new IllegalStateException("maxNameLength has not been set yet!");
 
-		String instructionName = instruction.toString();
-		countInstruction(instructionName);
+		String        instructionName = instruction.toString();
+		StringBuilder sb              = new StringBuilder(80);
 
-		if (!dumpIndividualInstructions) {
-			return;
-		}
-
-		StringBuilder sb = new StringBuilder(80);
-
-		appendData(sb, dst, start, len);
-		appendName(sb, instructionName);
+		appendData(sb, dst, start, len, maxInstructionSize);
+		appendName(sb, instructionName, maxNameLength);
 		sb.append('(');
 		appendParameters(sb, parameters);
 		appendTabs(sb, maxInstructionSize - parameters.length);
@@ -94,17 +186,11 @@ public class QoiFlowStatistics {
 		if (maxNameLength == 0)
 			throw new IllegalStateException("maxNameLength has not been set yet!");
 
-		String instructionName = instruction.toString();
-		countInstruction(instructionName);
-
-		if (!dumpIndividualInstructions) {
-			return;
-		}
-
-		StringBuilder sb = new StringBuilder(80);
+		String        instructionName = instruction.toString();
+		StringBuilder sb              = new StringBuilder(80);
 
-		appendData(sb, dst, start, len);
-		appendName(sb, instructionName);
+		appendData(sb, dst, start, len, maxInstructionSize);
+		appendName(sb, instructionName, maxNameLength);
 		sb.append('(');
 		appendMask(sb, mask, instruction.hasAlpha());
 		sb.append(", ");
@@ -116,37 +202,98 @@ public class QoiFlowStatistics {
 		System.out.println(sb);
 	}
 
-	public int getInstructionCount(String instructionName) {
-		int[] count = instructionCounts.get(instructionName);
-		if (count == null) {
-			return 0;
-		} else {
-			return count[0];
+	public long getInstructionCount(String instructionName) {
+		Counters slotCounters = getCounters(instructionName);
+		return slotCounters == null ? 0 : slotCounters.numInstructions.sum();
+	}
+
+	public long getPixelCount(String instructionName) {
+		Counters slotCounters = getCounters(instructionName);
+		return slotCounters == null ? 0 : slotCounters.numPixels.sum();
+	}
+
+	public long getByteCount(String instructionName) {
+		Counters slotCounters = getCounters(instructionName);
+		return slotCounters == null ? 0 : slotCounters.numBytes.sum();
+	}
+
+	private synchronized Counters getCounters(String instructionName) {
+		Integer slot = slotsByName.get(instructionName);
+		return slot == null ? null : counters[slot];
+	}
+
+	/**
+	 * Returns the number of instructions counted in every slot, for {@link #formatInstructionCountsSince(long[])}.
+	 */
+	long[] getInstructionCounts() {
+		Counters[] slotCounters = counters;
+		long[]     counts       = new long[slotCounters.length];
+		for (int slot = 0; slot < slotCounters.length; slot++) {
+			counts[slot] = slotCounters[slot].numInstructions.sum();
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Returns the number of instructions counted since {@link #getInstructionCounts()} returned {@code before},
+	 * like {@code "RLE87=173, HIST87=2488"}. Instructions that weren't counted are left out.
+	 * <p>
+	 * When other threads count at the same time, their instructions are included.
+	 */
+	String formatInstructionCountsSince(long[] before) {
+		String[]   names        = slotNames;
+		Counters[] slotCounters = counters;
+
+		StringBuilder sb = new StringBuilder(100);
+		for (int slot = 0; slot < slotCounters.length; slot++) {
+			long count = slotCounters[slot].numInstructions.sum() - (slot < before.length ? before[slot] : 0);
+			if (count > 0) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+
+				sb.append(names[slot]).append('=').append(count);
+			}
 		}
+
+		return sb.toString();
 	}
 
 	public void dumpCounts() {
-		StringBuilder sb = new StringBuilder(1000);
+		String[]              names          = slotNames;
+		Counters[]            slotCounters   = counters;
+		int                   nameLength     = maxNameLength;
+		Map<String, Counters> sortedCounters = new TreeMap<>();
+		for (int slot = 0; slot < names.length; slot++) {
+			// Skip names left behind by reconfigured instructions.
+			if (slotCounters[slot].numInstructions.sum() > 0) {
+				sortedCounters.put(names[slot], slotCounters[slot]);
+				nameLength = Math.max(nameLength, names[slot].length());
+			}
+		}
 
-		for (Map.Entry<String, int[]> entry : instructionCounts.entrySet()) {
-			sb.append('#');
-			appendName(sb, entry.getKey());
+		StringBuilder sb = new StringBuilder(1000);
+		for (Map.Entry<String, Counters> entry : sortedCounters.entrySet()) {
+			String name = entry.getKey();
+			sb.append('#').append(name).append(" ".repeat(nameLength - name.length()));
 			sb.append(": ");
-			sb.append(entry.getValue()[0]);
-			sb.append('\n');
+			sb.append(entry.getValue().numInstructions.sum()).append(" instructions, ");
+			sb.append(entry.getValue().numPixels.sum()).append(" pixels, ");
+			sb.append(entry.getValue().numBytes.sum()).append(" bytes\n");
 		}
 
-		sb.setLength(sb.length() - 1);
+		if (sb.length() > 0) {
+			sb.setLength(sb.length() - 1);
+		}
 
 		System.out.println(sb);
 	}
 
-	private void countInstruction(String instructionName) {
-		int[] count = instructionCounts.computeIfAbsent(instructionName, ignored -> new int[1]);
-		count[0]++;
-	}
-
-	private void appendData(StringBuilder sb, byte[] dst, int start, int len) {
+	/**
+	 * Appends the bytes of an instruction in hex, padded to the width of {@code maxInstructionSize} bytes.
+	 */
+	static void appendData(StringBuilder sb, byte[] dst, int start, int len, int maxInstructionSize) {
 		for (int i = start; i < start + len; i++) {
 			sb.append(HexUtilities.hexByteToString(dst[i]));
 			sb.append(' ');
@@ -155,7 +302,7 @@ public class QoiFlowStatistics {
 		sb.append("   ".repeat(Math.max(0, maxInstructionSize - len)));
 	}
 
-	private void appendName(StringBuilder sb, String instructionName) {
+	static void appendName(StringBuilder sb, String instructionName, int maxNameLength) {
 		sb.append(instructionName).append(" ".repeat(maxNameLength - instructionName.length()));
 	}
 
@@ -186,7 +333,7 @@ public class QoiFlowStatistics {
 		sb.append("      ".repeat(Math.max(0, n)));
 	}
 
-	private static void appendColor(StringBuilder sb, QoiFlowColor color) {
+	static void appendColor(StringBuilder sb, QoiFlowColor color) {
 		sb.append(String.format("QoiCOLOR(%3d, %3d, %3d, %3d)", color.r(), color.g(), color.b(), color.a()));
 	}
 }
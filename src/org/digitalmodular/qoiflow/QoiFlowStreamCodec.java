@@ -1,6 +1,5 @@
 package org.digitalmodular.qoiflow;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -9,10 +8,22 @@ import java.util.List;
 
 import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
 import org.digitalmodular.util.HexUtilities;
+import static org.digitalmodular.util.Validators.requireAtLeast;
 import static org.digitalmodular.util.Validators.requireRange;
 import static org.digitalmodular.util.Validators.requireSizeAtLeast;
 
 /**
+ * The configuration of a stream: the instructions, and how the code space is partitioned between them.
+ * <p>
+ * The configuration is fixed at construction. To try other variable lengths, create a new codec, for example, with
+ * {@link #withVariableLength(int, int)}. Instructions get their code offsets from the codec, so an instruction can
+ * only be part of one codec.
+ * <p>
+ * The codec holds no encoding or decoding state. That lives in a {@link QoiFlowCodecState},
+ * created with {@link #newState()} for every stream, so one codec can serve concurrent encodes and decodes.
+ * {@link #setStatistics(QoiFlowStatistics)} and {@link #setTraceRecorder(QoiFlowTraceRecorder)} must be called
+ * before the codec is shared between threads.
+ *
  * @author Mark Jeronimus
  */
 // Created 2022-06-05
@@ -20,29 +31,71 @@ public class QoiFlowStreamCodec {
 	public static final QoiFlowColor START_COLOR = new QoiFlowColor(0, 0, 0, 0);
 
 	// Codec configuration
-	private final List<QoiFlowInstruction> instructions;
-	private final int                      maxInstructionSize;
-	private final int                      numFixedCodes;
-	private final int[]                    variableLengths;
+	private final List<QoiFlowInstruction>   instructions;
+	private final int                        maxInstructionSize;
+	private final int                        numFixedCodes;
+	private final int[]                      variableLengths;
+	private final QoiFlowInstructionDispatch dispatch;
 
-	// Codec state during encoding/decoding (prevent rapid allocation/de-allocation)
-	private QoiFlowColor previousColor = START_COLOR;
-	private byte         footerCode    = 0;
+	// Code dispatch table
+	private final int[] instructionIndicesByCode = new int[256];
+	private final int[] localCodes               = new int[256];
+	private final byte  footerCode;
 
-	// Temporary state (prevent rapid allocation/de-allocation)
-	private final byte[] buffer;
+	private QoiFlowTraceRecorder traceRecorder = null;
 
+	/**
+	 * Creates a codec in which every variable-length instruction except the last gets 1 code,
+	 * and the last gets the remaining codes.
+	 */
 	public QoiFlowStreamCodec(Collection<QoiFlowInstruction> instructions) {
+		this(instructions, null);
+	}
+
+	/**
+	 * @param variableLengths The number of codes of every variable-length instruction except the last,
+	 *                        which gets the remaining codes. There must be at least one code remaining.
+	 *                        {@code null} gives the lengths of {@link #QoiFlowStreamCodec(Collection)}.
+	 * @throws IllegalArgumentException when the instructions don't fit in the code space,
+	 *                                  or when an instruction is already part of another codec.
+	 */
+	public QoiFlowStreamCodec(Collection<QoiFlowInstruction> instructions, int... variableLengths) {
 		this.instructions = new ArrayList<>(requireSizeAtLeast(2, instructions, "instructions"));
 
 		maxInstructionSize = findMaxInstructionSize(instructions);
 		int numVariableInstructions = countNumVariableInstructions(instructions);
 		numFixedCodes = countNumFixedCodes(instructions, numVariableInstructions);
 
-		variableLengths = new int[numVariableInstructions - 1];
-		Arrays.fill(variableLengths, 1);
+		if (variableLengths == null) {
+			this.variableLengths = new int[numVariableInstructions - 1];
+			Arrays.fill(this.variableLengths, 1);
+		} else {
+			this.variableLengths = checkVariableLengths(variableLengths, numVariableInstructions, numFixedCodes);
+		}
+
+		dispatch = new QoiFlowInstructionDispatch(this.instructions);
 
-		buffer = new byte[maxInstructionSize];
+		prepareCodeOffsets();
+		footerCode = findFooterCode(instructions);
+	}
+
+	private static int[] checkVariableLengths(int[] variableLengths, int numVariableInstructions, int numFixedCodes) {
+		if (variableLengths.length != numVariableInstructions - 1) {
+			throw new IllegalArgumentException("Expected " + (numVariableInstructions - 1) + " variable lengths: " +
+			                                   variableLengths.length);
+		}
+
+		int remaining = 256 - numFixedCodes;
+		for (int i = 0; i < variableLengths.length; i++) {
+			remaining -= requireAtLeast(1, variableLengths[i], "variableLengths[" + i + ']');
+		}
+
+		if (remaining < 1) {
+			throw new IllegalArgumentException("Variable lengths overflow the code space: " +
+			                                   Arrays.toString(variableLengths));
+		}
+
+		return variableLengths.clone();
 	}
 
 	private static int findMaxInstructionSize(Iterable<QoiFlowInstruction> instructions) {
@@ -102,15 +155,24 @@ public class QoiFlowStreamCodec {
 		return variableLengths.length;
 	}
 
-	public void setVariableLength(int index, int variableLength) {
+	/**
+	 * Returns a new codec with the same instructions, and the given variable length changed.
+	 * <p>
+	 * When the code space overflows, the other lengths are decreased, from the last to the first, as needed.
+	 * <p>
+	 * The new codec has new instances of the instructions, so only instructions that
+	 * {@link QoiFlowCodecDescriptor} can describe are supported. Statistics are not copied.
+	 */
+	public QoiFlowStreamCodec withVariableLength(int index, int variableLength) {
 		requireRange(0, variableLengths.length - 1, index, "index");
 		int maximumLength = 256 - numFixedCodes - variableLengths.length;
 		requireRange(1, maximumLength, variableLength, "variableLength");
 
-		variableLengths[index] = variableLength;
+		int[] newLengths = variableLengths.clone();
+		newLengths[index] = variableLength;
 
 		int remaining = 256 - numFixedCodes;
-		for (int length : variableLengths) {
+		for (int length : newLengths) {
 			remaining -= length;
 		}
 
@@ -124,18 +186,20 @@ public class QoiFlowStreamCodec {
 			// [6,  1, 252] (-3 remaining, still < 1)
 			// [2,  1, 252] (1) = Final resulting lengths.
 			remaining = 1 - remaining;
-			for (int i = variableLengths.length - 1; i >= 0; i--) {
+			for (int i = newLengths.length - 1; i >= 0; i--) {
 				if (i == index) {
 					continue;
 				}
 
-				int amount = Math.min(remaining, variableLengths[i] - 1);
-				variableLengths[i] -= amount;
+				int amount = Math.min(remaining, newLengths[i] - 1);
+				newLengths[i] -= amount;
 				remaining -= amount;
 				if (remaining == 0)
 					break;
 			}
 		}
+
+		return QoiFlowCodecDescriptor.of(this).createCodec(newLengths);
 	}
 
 	public int getVariableLength(int index) {
@@ -157,22 +221,26 @@ public class QoiFlowStreamCodec {
 		return Collections.unmodifiableList(instructions);
 	}
 
-	public void reset() {
-		prepareCodeOffsets();
-
-		previousColor = START_COLOR;
-		footerCode = findFooterCode(instructions);
-
-		for (QoiFlowInstruction instruction : instructions) {
-			instruction.reset();
+	/**
+	 * Creates the state to encode or decode one stream with.
+	 * <p>
+	 * The state is lightweight, but not thread-safe. Every concurrent encode or decode needs its own.
+	 */
+	public QoiFlowCodecState newState() {
+		QoiFlowInstruction[] streamInstructions = new QoiFlowInstruction[instructions.size()];
+		for (int i = 0; i < streamInstructions.length; i++) {
+			streamInstructions[i] = instructions.get(i).newStreamInstance();
 		}
+
+		return new QoiFlowCodecState(this, streamInstructions, dispatch, instructionIndicesByCode, localCodes);
 	}
 
 	private void prepareCodeOffsets() {
 		int codeOffset               = 256;
 		int variableInstructionIndex = 0;
-		for (QoiFlowInstruction instruction : instructions) {
-			int numCodes = instruction.getNumCodes();
+		for (int instructionIndex = 0; instructionIndex < instructions.size(); instructionIndex++) {
+			QoiFlowInstruction instruction = instructions.get(instructionIndex);
+			int                numCodes    = instruction.getNumCodes();
 
 			if (numCodes == 0) {
 				numCodes = getVariableLength(variableInstructionIndex);
@@ -182,6 +250,11 @@ public class QoiFlowStreamCodec {
 			codeOffset -= numCodes;
 
 			instruction.setCodeOffsetAndCount(codeOffset, numCodes);
+
+			for (int i = 0; i < numCodes; i++) {
+				instructionIndicesByCode[codeOffset + i] = instructionIndex;
+				localCodes[codeOffset + i] = i;
+			}
 		}
 	}
 
@@ -227,80 +300,37 @@ public class QoiFlowStreamCodec {
 			maxNameLength = Math.max(maxNameLength, instruction.toString().length());
 		}
 
-		statistics.setMaxInstructionSize(maxInstructionSize);
-		statistics.setMaxNameLength(maxNameLength);
+		if (statistics != null) {
+			statistics.setMaxInstructionSize(maxInstructionSize);
+			statistics.setMaxNameLength(maxNameLength);
+		}
 	}
 
 	public QoiFlowStatistics getStatistics() {
 		return instructions.get(0).getStatistics();
 	}
 
-	public void encode(QoiFlowColor color, ByteBuffer dst) {
-		QoiFlowPixelData pixel = new QoiFlowPixelData(previousColor, color);
-
-		preEncode(pixel, dst);
-		mainEncode(pixel, dst);
-
-		previousColor = color;
-	}
-
 	/**
-	 * Give instructions the opportunity to emit deferred data based on the new pixel, before actual encoding begins.
+	 * Sets or clears the recorder to trace every encoded and decoded instruction with.
 	 * <p>
-	 * This is required, for example, for RLE, to emit instructions when the color is no longer equal to the previous.
-	 * <p>
-	 * Does nothing unless overridden.
+	 * Set to {@code null} to disable tracing.
 	 */
-	private void preEncode(QoiFlowPixelData pixel, ByteBuffer dst) {
-		for (QoiFlowInstruction instruction : instructions) {
-			instruction.preEncode(pixel, dst);
-		}
+	public void setTraceRecorder(QoiFlowTraceRecorder traceRecorder) {
+		this.traceRecorder = traceRecorder;
 	}
 
-	private void mainEncode(QoiFlowPixelData pixel, ByteBuffer dst) {
-		for (QoiFlowInstruction instruction : instructions) {
-			int numBytes = instruction.encode(pixel, buffer);
-			if (numBytes >= 0) {
-				dst.put(buffer, 0, numBytes);
-				return;
-			}
-		}
-
-		throw new AssertionError("None of the instructions could encode: " + pixel);
+	public QoiFlowTraceRecorder getTraceRecorder() {
+		return traceRecorder;
 	}
 
 	/**
-	 * Give instructions the opportunity to emit deferred data at the end of the stream.
-	 * <p>
-	 * This marks the end of an encoding cycle.
-	 * Continuing to use this encoder without first calling {@link #reset()} results in unspecified behavior.
-	 * <p>
-	 * This is required, for example, for RLE, to emit instructions when the counter is {@code > 1}.
+	 * Gives another codec the same statistics and trace recorder as this one, for example, a re-tuned copy.
 	 */
-	public void finishEncoding(ByteBuffer dst) {
-		for (QoiFlowInstruction instruction : instructions) {
-			instruction.postEncode(dst);
-		}
-	}
-
-	public QoiFlowColorRun decode(int code, ByteBuffer src, QoiFlowColor lastColor) {
-		for (QoiFlowInstruction instruction : instructions) {
-			if (code >= instruction.getCodeOffset()) {
-				return instruction.decode(code, src, lastColor);
-			}
+	void copyInstrumentationTo(QoiFlowStreamCodec other) {
+		if (getStatistics() != null) {
+			other.setStatistics(getStatistics());
 		}
 
-		throw new AssertionError("None of the instructions could decode: " + HexUtilities.hexByteToString(code));
-	}
-
-	/**
-	 * Give instructions the opportunity to update their internal state depending on the decoded color.
-	 * <p>
-	 * This is required, for example, for Color History, to record a color not decoded by itself.
-	 */
-	public void postDecode(QoiFlowColor color) {
-		for (QoiFlowInstruction instruction : instructions) {
-			instruction.postDecode(color);
-		}
+		other.setTraceRecorder(traceRecorder);
 	}
 }
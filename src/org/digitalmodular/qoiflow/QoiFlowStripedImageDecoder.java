@@ -0,0 +1,150 @@
+package org.digitalmodular.qoiflow;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static org.digitalmodular.qoiflow.QoiFlowStripedImageEncoder.QOIF_STRIPED_MAGIC;
+
+/**
+ * Decodes a stream made by {@link QoiFlowStripedImageEncoder}, decoding all stripes concurrently.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-29
+public class QoiFlowStripedImageDecoder {
+	private final QoiFlowStreamCodec codec;
+	private final ForkJoinPool       pool;
+
+	private int opaqueImageType = BufferedImage.TYPE_3BYTE_BGR;
+
+	/**
+	 * Creates a decoder that uses the common pool.
+	 *
+	 * @param codec Must have the same instructions as the one used to encode.
+	 * @see QoiFlowImageDecoder#QoiFlowImageDecoder(QoiFlowStreamCodec)
+	 */
+	public QoiFlowStripedImageDecoder(QoiFlowStreamCodec codec) {
+		this(codec, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param codec Must have the same instructions as the one used to encode.
+	 */
+	public QoiFlowStripedImageDecoder(QoiFlowStreamCodec codec, ForkJoinPool pool) {
+		this.codec = Objects.requireNonNull(codec, "'codec' can't be null");
+		this.pool = Objects.requireNonNull(pool, "'pool' can't be null");
+	}
+
+	public int getOpaqueImageType() {
+		return opaqueImageType;
+	}
+
+	/**
+	 * @see QoiFlowImageDecoder#setOpaqueImageType(int)
+	 */
+	public void setOpaqueImageType(int opaqueImageType) {
+		this.opaqueImageType = QoiFlowImageDecoder.requireOpaqueImageType(opaqueImageType);
+	}
+
+	/**
+	 * Decodes a stream that is entirely contained in the buffer.
+	 * <p>
+	 * The buffer can be a heap, direct or memory-mapped buffer.
+	 */
+	public BufferedImage decode(ByteBuffer src) throws IOException {
+		Objects.requireNonNull(src, "src");
+
+		int           streamStart = src.position();
+		QoiFlowHeader header      = QoiFlowImageDecoder.readHeader(src, QOIF_STRIPED_MAGIC);
+
+		int   width  = header.width();
+		int   height = header.height();
+		int   stripeHeight;
+		int   numStripes;
+		int[] stripeOffsets;
+		try {
+			stripeHeight = src.getInt();
+			numStripes = src.getInt();
+			if (stripeHeight < 1) {
+				throw new IOException("Bad stripe height: " + stripeHeight);
+			} else if (numStripes != (height + stripeHeight - 1) / stripeHeight) {
+				throw new IOException("Bad number of stripes: " + numStripes);
+			}
+
+			stripeOffsets = readStripeOffsets(src, streamStart, numStripes);
+		} catch (BufferUnderflowException ignored) {
+			throw new IOException("Truncated header");
+		}
+
+		QoiFlowStreamCodec streamCodec = QoiFlowImageDecoder.getMatchingCodec(codec, header.codecDescriptor());
+
+		BufferedImage      image  = QoiFlowImageDecoder.createImage(
+				width, height, header.componentFormat(), opaqueImageType);
+		QoiFlowPixelTarget target = QoiFlowPixelTarget.of(image, null);
+
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(numStripes);
+		for (int i = 0; i < numStripes; i++) {
+			ByteBuffer stripe = src.duplicate()
+			                       .limit(streamStart + stripeOffsets[i + 1])
+			                       .position(streamStart + stripeOffsets[i]);
+
+			int startY = i * stripeHeight;
+			int endY   = Math.min(startY + stripeHeight, height);
+			tasks.add(pool.submit(
+					() -> decodeStripe(streamCodec, stripe, target, header.componentFormat(), width, startY, endY)));
+		}
+
+		try {
+			for (ForkJoinTask<?> task : tasks) {
+				task.join();
+			}
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+
+		src.position(streamStart + stripeOffsets[numStripes]);
+		return image;
+	}
+
+	private static int[] readStripeOffsets(ByteBuffer src, int streamStart, int numStripes) throws IOException {
+		int[] stripeOffsets = new int[numStripes + 1];
+		for (int i = 0; i <= numStripes; i++) {
+			stripeOffsets[i] = src.getInt();
+		}
+
+		int headerEnd = src.position() - streamStart;
+		int streamEnd = src.limit() - streamStart;
+		for (int i = 0; i <= numStripes; i++) {
+			int min = i == 0 ? headerEnd : stripeOffsets[i - 1];
+			if (stripeOffsets[i] < min || stripeOffsets[i] > streamEnd) {
+				throw new IOException("Bad stripe offset " + i + ": " + stripeOffsets[i]);
+			}
+		}
+
+		return stripeOffsets;
+	}
+
+	private static void decodeStripe(QoiFlowStreamCodec codec,
+	                                 ByteBuffer src,
+	                                 QoiFlowPixelTarget target,
+	                                 QoiFlowComponentFormat componentFormat,
+	                                 int width,
+	                                 int startY,
+	                                 int endY) {
+		QoiFlowCodecState state = codec.newState();
+
+		try {
+			QoiFlowImageDecoder.decodeImage(state, src, null, target, componentFormat, width, startY, endY);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package org.digitalmodular.qoiflow;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static org.digitalmodular.util.Validators.requireAtLeast;
+
+/**
+ * Encodes an image as independent horizontal stripes, concurrently.
+ * <p>
+ * Every stripe gets a new codec state, so each stripe can be encoded and decoded on its own.
+ * This costs a little compression (the first pixels of a stripe can't refer to the previous stripe)
+ * in exchange for scaling with the number of cores.
+ * <p>
+ * Stream layout:
+ * <pre>
+ * header                 (like {@link QoiFlowImageEncoder}, but with {@link #QOIF_STRIPED_MAGIC})
+ * int stripeHeight
+ * int numStripes
+ * int stripeOffsets[numStripes + 1]  (from the start of the stream, the last one being the end of the stream)
+ * stripe data[numStripes]            (each with its own footer)
+ * </pre>
+ *
+ * @author Mark Jeronimus
+ * @see QoiFlowStripedImageDecoder
+ */
+// Created 2022-06-29
+public class QoiFlowStripedImageEncoder {
+	@SuppressWarnings("CharUsedInArithmeticContext")
+	public static final int QOIF_STRIPED_MAGIC = 'Q' << 24 |
+	                                             'O' << 16 |
+	                                             'I' << 8 |
+	                                             'S';
+
+	public static final int DEFAULT_STRIPE_HEIGHT = 256;
+
+	private final QoiFlowStreamCodec codec;
+	private final int                stripeHeight;
+	private final ForkJoinPool       pool;
+
+	/**
+	 * Creates an encoder that uses the common pool.
+	 */
+	public QoiFlowStripedImageEncoder(QoiFlowStreamCodec codec, int stripeHeight) {
+		this(codec, stripeHeight, ForkJoinPool.commonPool());
+	}
+
+	public QoiFlowStripedImageEncoder(QoiFlowStreamCodec codec, int stripeHeight, ForkJoinPool pool) {
+		this.codec = Objects.requireNonNull(codec, "'codec' can't be null");
+		this.stripeHeight = requireAtLeast(1, stripeHeight, "stripeHeight");
+		this.pool = Objects.requireNonNull(pool, "'pool' can't be null");
+	}
+
+	/**
+	 * @return A new ByteBuffer, backed by a heap array of exactly the size of the stream,
+	 * positioned at the end of the data.
+	 */
+	public ByteBuffer encode(BufferedImage image) {
+		byte[] stream = encodeToByteArray(image);
+		return ByteBuffer.wrap(stream).position(stream.length);
+	}
+
+	public byte[] encodeToByteArray(BufferedImage image) {
+		Objects.requireNonNull(image, "image");
+
+		image = QoiFlowUtilities.asCompatibleImage(image);
+
+		QoiFlowComponentFormat componentFormat = QoiFlowImageAnalyzer.analyze(image);
+
+		int width      = image.getWidth();
+		int height     = image.getHeight();
+		int numStripes = (height + stripeHeight - 1) / stripeHeight;
+
+		QoiFlowCodecDescriptor codecDescriptor = QoiFlowCodecDescriptor.of(codec);
+
+		byte[][] stripes = encodeStripes(image, componentFormat, numStripes);
+
+		QoiFlowHeader         header       = new QoiFlowHeader(width, height, componentFormat, codecDescriptor);
+		QoiFlowGrowableOutput headerOutput = new QoiFlowGrowableOutput(
+				QoiFlowImageEncoder.FIXED_HEADER_LENGTH + codecDescriptor.size() + (numStripes + 3) * 4);
+		QoiFlowImageEncoder.writeHeader(QOIF_STRIPED_MAGIC, header, headerOutput);
+		headerOutput.putInt(stripeHeight);
+		headerOutput.putInt(numStripes);
+
+		long offset = headerOutput.size() + (numStripes + 1) * 4L;
+		for (byte[] stripe : stripes) {
+			headerOutput.putInt((int)offset);
+			offset += stripe.length;
+		}
+
+		if (offset > Integer.MAX_VALUE - 8) {
+			throw new OutOfMemoryError("Encoded stream too large for a heap array: " + offset);
+		}
+
+		headerOutput.putInt((int)offset);
+
+		QoiFlowGrowableOutput dst         = new QoiFlowGrowableOutput((int)offset);
+		byte[]                headerBytes = headerOutput.toByteArray();
+		dst.put(headerBytes, 0, headerBytes.length);
+		for (byte[] stripe : stripes) {
+			dst.put(stripe, 0, stripe.length);
+		}
+
+		return dst.toByteArray();
+	}
+
+	private byte[][] encodeStripes(BufferedImage image, QoiFlowComponentFormat componentFormat, int numStripes) {
+		List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(numStripes);
+		for (int i = 0; i < numStripes; i++) {
+			int startY = i * stripeHeight;
+			int endY   = Math.min(startY + stripeHeight, image.getHeight());
+			tasks.add(pool.submit(() -> encodeStripe(image, componentFormat, startY, endY)));
+		}
+
+		byte[][] stripes = new byte[numStripes][];
+		for (int i = 0; i < numStripes; i++) {
+			stripes[i] = tasks.get(i).join();
+		}
+
+		return stripes;
+	}
+
+	private byte[] encodeStripe(BufferedImage image, QoiFlowComponentFormat componentFormat, int startY, int endY) {
+		QoiFlowCodecState state = codec.newState();
+
+		// Start at 1 byte per pixel, which is a reasonable guess for most images.
+		QoiFlowGrowableOutput dst = new QoiFlowGrowableOutput(Math.max(256, image.getWidth() * (endY - startY)));
+
+		QoiFlowImageEncoder.encodeImage(state, image, componentFormat, startY, endY, dst);
+		state.finishEncoding(dst);
+		QoiFlowImageEncoder.writeFooter(codec, dst);
+
+		return dst.toByteArray();
+	}
+}
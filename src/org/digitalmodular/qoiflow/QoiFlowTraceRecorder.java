@@ -0,0 +1,322 @@
+package org.digitalmodular.qoiflow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
+
+import static org.digitalmodular.util.Validators.requireAtLeast;
+
+/**
+ * Records every encoded or decoded instruction to a compact binary file, to be rendered afterwards by
+ * {@link QoiFlowTraceRenderer}.
+ * <p>
+ * Unlike {@link QoiFlowStatistics#setDumpIndividualInstructions(boolean)}, which formats and prints every instruction
+ * as it goes, this only copies a few numbers into a buffer, so it's fast enough to trace full-size images.
+ * Every stream (every {@link QoiFlowStreamCodec#newState()}) collects its records in a block of its own, without
+ * locking. Full blocks are copied into chunks, which a background thread writes to the file while the next chunk
+ * fills up. When the writer falls behind, recording waits for a free chunk, so no records are lost.
+ * <p>
+ * Every stream starts with a record that names its instructions. Every block starts with the ID of its stream, so
+ * the blocks of streams traced at the same time (for example, by {@link QoiFlowStripedImageEncoder}) can interleave.
+ * <p>
+ * File format (big-endian):
+ * <pre>
+ * int  magic {@link #TRACE_MAGIC}
+ * Stream record:
+ *   byte   {@link #STREAM_RECORD}
+ *   int    streamID (sequential, starting at 0)
+ *   byte   maxInstructionSize
+ *   byte   numInstructions
+ *   per instruction: byte length, UTF-8 name
+ * Block record (followed by the instruction records of that stream):
+ *   byte   {@link #BLOCK_RECORD}
+ *   int    streamID
+ * Instruction record:
+ *   byte   slot (index of the instruction in the stream record)
+ *   byte   length (in bytes, clamped to 255)
+ *   int    color (RGBA)
+ *   long   offset (of the first byte of the instruction, relative to the end of the header)
+ * </pre>
+ *
+ * @author Mark Jeronimus
+ * @see QoiFlowStreamCodec#setTraceRecorder(QoiFlowTraceRecorder)
+ */
+// Created 2022-07-02
+public final class QoiFlowTraceRecorder implements Closeable {
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	static final int TRACE_MAGIC        = ('q' << 24) | ('o' << 16) | ('f' << 8) | 't';
+	static final int STREAM_RECORD      = 0xFF;
+	static final int BLOCK_RECORD       = 0xFE;
+	static final int INSTRUCTION_RECORD = 14;
+
+	private static final int        NUM_CHUNKS   = 4;
+	private static final int        BLOCK_HEADER = 5;
+	private static final int        BLOCK_SIZE   = 1 << 14;
+	private static final ByteBuffer END          = ByteBuffer.allocate(0);
+
+	private final FileChannel               channel;
+	private final int                       blockSize;
+	private final BlockingQueue<ByteBuffer> freeChunks  = new ArrayBlockingQueue<>(NUM_CHUNKS);
+	private final BlockingQueue<ByteBuffer> fullChunks  = new ArrayBlockingQueue<>(NUM_CHUNKS + 1);
+	private final Set<StreamTrace>          openStreams = new HashSet<>();
+	private final Thread                    writer;
+
+	private          ByteBuffer  chunk;
+	private          int         numStreams     = 0;
+	private volatile IOException writeException = null;
+	private          boolean     closed         = false;
+
+	/**
+	 * Creates a recorder with chunks of {@link #DEFAULT_CHUNK_SIZE} bytes.
+	 * An existing file is overwritten.
+	 */
+	public QoiFlowTraceRecorder(Path file) throws IOException {
+		this(file, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param chunkSize The size of the buffers records are collected in, in bytes.
+	 */
+	public QoiFlowTraceRecorder(Path file, int chunkSize) throws IOException {
+		Objects.requireNonNull(file, "'file' can't be null");
+		requireAtLeast(1024, chunkSize, "chunkSize");
+
+		channel = FileChannel.open(file,
+		                           StandardOpenOption.CREATE,
+		                           StandardOpenOption.TRUNCATE_EXISTING,
+		                           StandardOpenOption.WRITE);
+
+		blockSize = Math.min(chunkSize, BLOCK_SIZE);
+
+		for (int i = 0; i < NUM_CHUNKS - 1; i++) {
+			freeChunks.add(ByteBuffer.allocateDirect(chunkSize));
+		}
+
+		chunk = ByteBuffer.allocateDirect(chunkSize);
+		chunk.putInt(TRACE_MAGIC);
+
+		writer = new Thread(this::writeChunks, "QoiFlowTraceRecorder writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Records the start of a stream.
+	 *
+	 * @return Where to record the instructions of the stream.
+	 */
+	synchronized StreamTrace beginStream(QoiFlowInstruction[] instructions, int maxInstructionSize) {
+		byte[][] names = new byte[instructions.length][];
+		int      size  = 7;
+		for (int i = 0; i < instructions.length; i++) {
+			names[i] = instructions[i].toString().getBytes(StandardCharsets.UTF_8);
+			size += 1 + names[i].length;
+		}
+
+		ensureRoom(size);
+
+		int streamID = numStreams++;
+		chunk.put((byte)STREAM_RECORD);
+		chunk.putInt(streamID);
+		chunk.put((byte)maxInstructionSize);
+		chunk.put((byte)instructions.length);
+		for (byte[] name : names) {
+			chunk.put((byte)name.length);
+			chunk.put(name);
+		}
+
+		StreamTrace stream = new StreamTrace(streamID);
+		openStreams.add(stream);
+		return stream;
+	}
+
+	private synchronized void writeBlock(ByteBuffer block) {
+		ensureRoom(block.remaining());
+
+		chunk.put(block);
+	}
+
+	private synchronized void endStream(StreamTrace stream) {
+		openStreams.remove(stream);
+	}
+
+	private void ensureRoom(int size) {
+		if (closed) {
+			throw new IllegalStateException("The recorder is closed");
+		} else if (chunk.remaining() < size) {
+			chunk.flip();
+			putUninterruptibly(fullChunks, chunk);
+			chunk = takeUninterruptibly(freeChunks);
+		}
+	}
+
+	/**
+	 * Writes the remaining records, and closes the file.
+	 *
+	 * @throws IOException When any chunk failed to be written.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		// Streams that didn't end, for example, because of an exception.
+		for (StreamTrace stream : new ArrayList<>(openStreams)) {
+			stream.end();
+		}
+
+		closed = true;
+
+		chunk.flip();
+		putUninterruptibly(fullChunks, chunk);
+		putUninterruptibly(fullChunks, END);
+
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException ignored) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		channel.close();
+
+		if (writeException != null) {
+			throw writeException;
+		}
+	}
+
+	private void writeChunks() {
+		while (true) {
+			ByteBuffer fullChunk = takeUninterruptibly(fullChunks);
+			if (fullChunk == END) {
+				return;
+			}
+
+			// After a failure, keep recycling chunks so recording doesn't block, and report it when closing.
+			if (writeException == null) {
+				try {
+					while (fullChunk.hasRemaining()) {
+						channel.write(fullChunk);
+					}
+				} catch (IOException ex) {
+					writeException = ex;
+				}
+			}
+
+			fullChunk.clear();
+			putUninterruptibly(freeChunks, fullChunk);
+		}
+	}
+
+	/**
+	 * Collects the records of one stream, and only locks the recorder once per block.
+	 * <p>
+	 * Like {@link QoiFlowCodecState}, this is not thread-safe.
+	 */
+	final class StreamTrace {
+		private final int        streamID;
+		private final ByteBuffer block = ByteBuffer.allocate(blockSize);
+
+		private StreamTrace(int streamID) {
+			this.streamID = streamID;
+
+			block.put((byte)BLOCK_RECORD);
+			block.putInt(streamID);
+		}
+
+		/**
+		 * Records one instruction.
+		 *
+		 * @param slot   The index of the instruction in the codec.
+		 * @param offset The position of the instruction in the stream, relative to the end of the header.
+		 * @param color  The color the instruction encodes, packed as {@code 0xRRGGBBAA}.
+		 */
+		void record(int slot, int length, int color, long offset) {
+			if (block.remaining() < INSTRUCTION_RECORD) {
+				flush();
+			}
+
+			block.put((byte)slot);
+			block.put((byte)Math.min(length, 255));
+			block.putInt(color);
+			block.putLong(offset);
+		}
+
+		/**
+		 * Writes the remaining records. Nothing can be recorded afterwards.
+		 */
+		void end() {
+			flush();
+			endStream(this);
+		}
+
+		private void flush() {
+			if (block.position() == BLOCK_HEADER) {
+				return;
+			}
+
+			block.flip();
+			writeBlock(block);
+			block.clear();
+
+			block.put((byte)BLOCK_RECORD);
+			block.putInt(streamID);
+		}
+	}
+
+	/**
+	 * Tracing should never change the outcome of the code being traced, so interrupts are postponed, not thrown.
+	 */
+	private static <T> void putUninterruptibly(BlockingQueue<T> queue, T element) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(element);
+				break;
+			} catch (InterruptedException ignored) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static <T> T takeUninterruptibly(BlockingQueue<T> queue) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return queue.take();
+				} catch (InterruptedException ignored) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package org.digitalmodular.qoiflow;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Renders a trace written by {@link QoiFlowTraceRecorder} as text, in the same columns as
+ * {@link QoiFlowStatistics#setDumpIndividualInstructions(boolean)}, prefixed with the offset of every instruction.
+ * <p>
+ * The trace doesn't contain the encoded bytes themselves. To show them, pass the encoded streams in the order they
+ * were traced. Without them, the data column is left empty.
+ * <p>
+ * Streams traced at the same time are rendered in blocks, each preceded by the number of its stream.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-07-02
+public final class QoiFlowTraceRenderer {
+	private QoiFlowTraceRenderer() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * @param streamFiles The encoded streams (as written by {@link QoiFlowImageEncoder}), one for every stream in the
+	 *                    trace, in the same order. May be shorter than the number of streams, or empty.
+	 */
+	public static void render(Path traceFile, List<Path> streamFiles, PrintStream out) throws IOException {
+		Objects.requireNonNull(traceFile, "traceFile");
+		Objects.requireNonNull(streamFiles, "streamFiles");
+		Objects.requireNonNull(out, "out");
+
+		try (InputStream fileIn = Files.newInputStream(traceFile);
+		     DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+			if (in.readInt() != QoiFlowTraceRecorder.TRACE_MAGIC) {
+				throw new IOException("Not a trace file: " + traceFile);
+			}
+
+			List<TracedStream> streams = new ArrayList<>();
+			TracedStream       stream  = null;
+
+			StringBuilder sb   = new StringBuilder(80);
+			byte[]        none = new byte[0];
+
+			while (true) {
+				int slot = in.read();
+				if (slot < 0) {
+					break;
+				}
+
+				if (slot == QoiFlowTraceRecorder.STREAM_RECORD) {
+					int streamID = in.readInt();
+					if (streamID != streams.size()) {
+						throw new IOException("Bad stream ID in trace: " + streamID);
+					}
+
+					int      maxInstructionSize = in.readUnsignedByte();
+					String[] names              = new String[in.readUnsignedByte()];
+					int      maxNameLength      = 1;
+					for (int i = 0; i < names.length; i++) {
+						byte[] name = new byte[in.readUnsignedByte()];
+						in.readFully(name);
+						names[i] = new String(name, StandardCharsets.UTF_8);
+						maxNameLength = Math.max(maxNameLength, names[i].length());
+					}
+
+					byte[] pixelData = streamID < streamFiles.size() ? readPixelData(streamFiles.get(streamID)) : null;
+					streams.add(new TracedStream(names, maxNameLength, maxInstructionSize, pixelData));
+					continue;
+				} else if (slot == QoiFlowTraceRecorder.BLOCK_RECORD) {
+					int streamID = in.readInt();
+					if (streamID < 0 || streamID >= streams.size()) {
+						throw new IOException("Bad stream ID in trace: " + streamID);
+					}
+
+					if (stream != streams.get(streamID)) {
+						stream = streams.get(streamID);
+						out.println("Stream " + streamID);
+					}
+
+					continue;
+				} else if (stream == null || slot >= stream.names().length) {
+					throw new IOException("Bad instruction slot in trace: " + slot);
+				}
+
+				int  length = in.readUnsignedByte();
+				int  color  = in.readInt();
+				long offset = in.readLong();
+
+				sb.setLength(0);
+				sb.append(String.format("%10d  ", offset));
+
+				byte[] pixelData = stream.pixelData();
+				if (pixelData != null && offset + length <= pixelData.length) {
+					QoiFlowStatistics.appendData(sb, pixelData, (int)offset, length, stream.maxInstructionSize());
+				} else {
+					QoiFlowStatistics.appendData(sb, none, 0, 0, stream.maxInstructionSize());
+				}
+
+				QoiFlowStatistics.appendName(sb, stream.names()[slot], stream.maxNameLength());
+				sb.append(" = ");
+				QoiFlowStatistics.appendColor(sb, QoiFlowColor.fromRGBA(color));
+
+				out.println(sb);
+			}
+		} catch (EOFException ex) {
+			throw new IOException("Truncated trace file: " + traceFile, ex);
+		}
+	}
+
+	private record TracedStream(String[] names, int maxNameLength, int maxInstructionSize, byte[] pixelData) {
+	}
+
+	/**
+	 * Returns the stream without the header, so trace offsets index it directly.
+	 */
+	private static byte[] readPixelData(Path streamFile) throws IOException {
+		ByteBuffer src = ByteBuffer.wrap(Files.readAllBytes(streamFile));
+		QoiFlowImageDecoder.readHeader(src, QoiFlowImageEncoder.QOIF_MAGIC);
+
+		byte[] pixelData = new byte[src.remaining()];
+		src.get(pixelData);
+		return pixelData;
+	}
+}
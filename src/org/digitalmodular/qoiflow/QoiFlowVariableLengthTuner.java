@@ -0,0 +1,176 @@
+package org.digitalmodular.qoiflow;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.digitalmodular.util.Validators.requireAtLeast;
+
+/**
+ * Searches the variable lengths (see {@link QoiFlowStreamCodec#withVariableLength(int, int)}) that encode a specific
+ * image the smallest.
+ * <p>
+ * Every variable length is searched in turn, keeping the others fixed.
+ * Each round encodes a number of evenly spaced candidate lengths concurrently,
+ * and the next round narrows the range down around the best one, until all lengths in the range are tried.
+ * Trial encodes only count bytes, and abort as soon as they exceed the smallest size found so far.
+ * <p>
+ * The search assumes the size varies smoothly with the lengths, so it can miss the optimum for unusual images.
+ * The result is never worse than the configuration of the given codec.
+ *
+ * @author Mark Jeronimus
+ * @see QoiFlowImageEncoder#QoiFlowImageEncoder(QoiFlowStreamCodec, QoiFlowVariableLengthTuner)
+ */
+// Created 2022-07-02
+public class QoiFlowVariableLengthTuner {
+	public static final int DEFAULT_NUM_CANDIDATES = 8;
+
+	private final int          numCandidates;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a tuner that tries {@link #DEFAULT_NUM_CANDIDATES} lengths per round, using the common pool.
+	 */
+	public QoiFlowVariableLengthTuner() {
+		this(DEFAULT_NUM_CANDIDATES, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param numCandidates The number of lengths to try per round. Higher numbers need fewer rounds.
+	 */
+	public QoiFlowVariableLengthTuner(int numCandidates, ForkJoinPool pool) {
+		this.numCandidates = requireAtLeast(3, numCandidates, "numCandidates");
+		this.pool = Objects.requireNonNull(pool, "'pool' can't be null");
+	}
+
+	/**
+	 * Returns a codec with the same instructions as the given codec, and variable lengths tuned for the image.
+	 * <p>
+	 * When no better lengths are found, the given codec itself is returned.
+	 *
+	 * @param image An image in a format returned by {@link QoiFlowUtilities#asCompatibleImage(BufferedImage)}.
+	 */
+	public QoiFlowStreamCodec tune(QoiFlowStreamCodec codec, BufferedImage image) {
+		Objects.requireNonNull(codec, "codec");
+		Objects.requireNonNull(image, "image");
+
+		return tune(codec, image, QoiFlowImageAnalyzer.analyze(image));
+	}
+
+	QoiFlowStreamCodec tune(QoiFlowStreamCodec codec, BufferedImage image, QoiFlowComponentFormat componentFormat) {
+		if (codec.getNumVariableLengths() == 0 || image.getWidth() == 0 || image.getHeight() == 0) {
+			return codec;
+		}
+
+		// Trials use copies, so they don't record statistics or traces.
+		QoiFlowCodecDescriptor bestDescriptor = QoiFlowCodecDescriptor.of(codec);
+		AtomicLong             bestSize       = new AtomicLong(Long.MAX_VALUE);
+		trialEncode(bestDescriptor.createCodec(), image, componentFormat, bestSize);
+
+		for (int index = 0; index < codec.getNumVariableLengths(); index++) {
+			bestDescriptor = tuneVariableLength(bestDescriptor, index, image, componentFormat, bestSize);
+		}
+
+		if (bestDescriptor.equals(QoiFlowCodecDescriptor.of(codec))) {
+			return codec;
+		}
+
+		QoiFlowStreamCodec tunedCodec = bestDescriptor.createCodec();
+		codec.copyInstrumentationTo(tunedCodec);
+
+		return tunedCodec;
+	}
+
+	private QoiFlowCodecDescriptor tuneVariableLength(QoiFlowCodecDescriptor descriptor,
+	                                                  int index,
+	                                                  BufferedImage image,
+	                                                  QoiFlowComponentFormat componentFormat,
+	                                                  AtomicLong bestSize) {
+		QoiFlowStreamCodec baseCodec = descriptor.createCodec();
+
+		int maximumLength = baseCodec.getNumVariableCodes() - baseCodec.getNumVariableLengths();
+		int bestLength    = baseCodec.getVariableLength(index);
+
+		// Lengths already tried, with the resulting size, or Long.MAX_VALUE when aborted.
+		Map<Integer, Long>                   sizes       = new TreeMap<>();
+		Map<Integer, QoiFlowCodecDescriptor> descriptors = new HashMap<>();
+		sizes.put(bestLength, bestSize.get());
+		descriptors.put(bestLength, descriptor);
+
+		int low  = 1;
+		int high = maximumLength;
+		while (true) {
+			int step = Math.max(1, (high - low + numCandidates - 2) / (numCandidates - 1));
+
+			List<Integer>            lengths = new ArrayList<>(numCandidates);
+			List<ForkJoinTask<Long>> tasks   = new ArrayList<>(numCandidates);
+			for (int length = low; length <= high; length += step) {
+				if (sizes.containsKey(length)) {
+					continue;
+				}
+
+				QoiFlowStreamCodec candidate = baseCodec.withVariableLength(index, length);
+				descriptors.put(length, QoiFlowCodecDescriptor.of(candidate));
+
+				lengths.add(length);
+				tasks.add(pool.submit(() -> trialEncode(candidate, image, componentFormat, bestSize)));
+			}
+
+			for (int i = 0; i < tasks.size(); i++) {
+				sizes.put(lengths.get(i), tasks.get(i).join());
+			}
+
+			// In order of length, so ties are resolved the same way every time.
+			for (Map.Entry<Integer, Long> entry : sizes.entrySet()) {
+				if (entry.getValue() < sizes.get(bestLength)) {
+					bestLength = entry.getKey();
+				}
+			}
+
+			if (step == 1) {
+				break;
+			}
+
+			low = Math.max(1, bestLength - step + 1);
+			high = Math.min(maximumLength, bestLength + step - 1);
+		}
+
+		return descriptors.get(bestLength);
+	}
+
+	/**
+	 * Encodes the image without storing anything, and lowers {@code bestSize} if the result is smaller.
+	 *
+	 * @return The size of the encoded pixel data, or {@link Long#MAX_VALUE} if it became larger than {@code bestSize}
+	 * before the end of the image.
+	 */
+	private static long trialEncode(QoiFlowStreamCodec codec,
+	                                BufferedImage image,
+	                                QoiFlowComponentFormat componentFormat,
+	                                AtomicLong bestSize) {
+		QoiFlowCodecState     state = codec.newState();
+		QoiFlowCountingOutput dst   = new QoiFlowCountingOutput();
+
+		int height = image.getHeight();
+		for (int y = 0; y < height; y++) {
+			QoiFlowImageEncoder.encodeImage(state, image, componentFormat, y, y + 1, dst);
+
+			if (dst.size() > bestSize.get()) {
+				return Long.MAX_VALUE;
+			}
+		}
+
+		state.finishEncoding(dst);
+
+		long size = dst.size();
+		bestSize.accumulateAndGet(size, Math::min);
+		return size;
+	}
+}
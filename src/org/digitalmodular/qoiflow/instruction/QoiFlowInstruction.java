@@ -4,7 +4,7 @@ import java.nio.ByteBuffer;
 
 import org.digitalmodular.qoiflow.QoiFlowColor;
 import org.digitalmodular.qoiflow.QoiFlowColorRun;
-import org.digitalmodular.qoiflow.QoiFlowPixelData;
+import org.digitalmodular.qoiflow.QoiFlowOutput;
 import org.digitalmodular.qoiflow.QoiFlowStatistics;
 import org.digitalmodular.qoiflow.QoiFlowStreamCodec;
 import static org.digitalmodular.util.Validators.requireRange;
@@ -26,10 +26,12 @@ public abstract class QoiFlowInstruction {
 
 	protected final int numBits;
 
-	protected int codeOffset          = 0;
-	protected int calculatedCodeCount = 1;
+	protected int     codeOffset          = 0;
+	protected int     calculatedCodeCount = 1;
+	private   boolean hasCodeOffset       = false;
 
-	protected QoiFlowStatistics statistics = null;
+	protected QoiFlowStatistics statistics     = null;
+	private   int               statisticsSlot = -1;
 
 	protected QoiFlowInstruction(int bitsR, int bitsG, int bitsB, int bitsA) {
 		this.bitsR = requireRange(1, 8, bitsR, "bitsR");
@@ -69,9 +71,24 @@ public abstract class QoiFlowInstruction {
 		return (numBits + 8) / 8;
 	}
 
+	/**
+	 * Called once, by the codec this instruction becomes part of.
+	 *
+	 * @throws IllegalArgumentException when the instruction is already part of a codec.
+	 */
 	public void setCodeOffsetAndCount(int codeOffset, int calculatedCodeCount) {
+		if (hasCodeOffset) {
+			throw new IllegalArgumentException("The instruction is already part of a codec: " + this);
+		}
+
+		hasCodeOffset = true;
 		this.codeOffset = codeOffset;
 		this.calculatedCodeCount = calculatedCodeCount;
+
+		// Statistics may have been set before joining the codec. The name includes the code count, so register again.
+		if (statistics != null) {
+			statisticsSlot = statistics.registerInstruction(toString());
+		}
 	}
 
 	public int getCodeOffset() {
@@ -81,7 +98,7 @@ public abstract class QoiFlowInstruction {
 	/**
 	 * Returns the total number of codes (values) of the first byte of this instruction, as calculated by the codec.
 	 * <p>
-	 * This is only valid when {@link QoiFlowStreamCodec#reset()} has been called on the codec.
+	 * This is only valid once the instruction is part of a {@link QoiFlowStreamCodec}.
 	 * <p>
 	 * When this is not a variable-length instruction, the value will then equal {@link #getNumCodes()}.
 	 */
@@ -89,6 +106,22 @@ public abstract class QoiFlowInstruction {
 		return calculatedCodeCount;
 	}
 
+	public int getBitsR() {
+		return bitsR;
+	}
+
+	public int getBitsG() {
+		return bitsG;
+	}
+
+	public int getBitsB() {
+		return bitsB;
+	}
+
+	public int getBitsA() {
+		return bitsA;
+	}
+
 	public boolean hasAlpha() {
 		return bitsA > 0;
 	}
@@ -101,6 +134,7 @@ public abstract class QoiFlowInstruction {
 	 */
 	public void setStatistics(QoiFlowStatistics statistics) {
 		this.statistics = statistics;
+		statisticsSlot = statistics == null ? -1 : statistics.registerInstruction(toString());
 	}
 
 	public QoiFlowStatistics getStatistics() {
@@ -108,57 +142,99 @@ public abstract class QoiFlowInstruction {
 	}
 
 	/**
-	 * Resets internal state of the encoder/decoder.
+	 * Returns an instance to encode or decode one stream with.
 	 * <p>
-	 * Does nothing unless overridden.
+	 * The instance has the same configuration (including the code offset and statistics) as this one,
+	 * but its own encoder/decoder state, so the instructions in a codec can be shared between threads.
+	 * <p>
+	 * Stateless instructions return themselves, which is what this does unless overridden.
+	 * Stateful instructions return a new instance initialized with {@link #copyConfigurationTo(QoiFlowInstruction)}.
 	 */
-	public void reset() {
+	public QoiFlowInstruction newStreamInstance() {
+		return this;
+	}
+
+	protected <I extends QoiFlowInstruction> I copyConfigurationTo(I instance) {
+		instance.setCodeOffsetAndCount(codeOffset, calculatedCodeCount);
+
+		// Same slot, without registering again for every stream.
+		QoiFlowInstruction copy = instance;
+		copy.statistics = statistics;
+		copy.statisticsSlot = statisticsSlot;
+		return instance;
+	}
+
+	/**
+	 * Counts one encoded or decoded instance of this instruction, if statistics are enabled.
+	 *
+	 * @return Whether the instruction should also be printed with
+	 * {@link QoiFlowStatistics#record(QoiFlowInstruction, byte[], int, int, QoiFlowColor, int...)}.
+	 */
+	protected final boolean countStatistics(int numPixels, int numBytes) {
+		if (statistics == null) {
+			return false;
+		}
+
+		statistics.count(statisticsSlot, numPixels, numBytes);
+		return statistics.isDumpIndividualInstructions();
 	}
 
 	/**
 	 * Give the instruction the opportunity to emit deferred data based on the new pixel.
 	 * <p>
-	 * Unlike {@link #encode(QoiFlowPixelData, byte[])}, this will be called on every instruction always.
+	 * Unlike {@link #encode(int, int, byte[])}, this will be called on every instruction always.
 	 * <p>
 	 * This is required, for example, for RLE, to emit instructions when the color is no longer equal to the previous.
 	 * <p>
 	 * Does nothing unless overridden.
+	 *
+	 * @param previous The previous color, packed as {@code 0xRRGGBBAA}
+	 * @param color    The color to encode, packed as {@code 0xRRGGBBAA}
 	 */
-	public void preEncode(QoiFlowPixelData pixel, ByteBuffer dst) {
+	public void preEncode(int previous, int color, QoiFlowOutput dst) {
 	}
 
 	/**
 	 * Attempts to encode the pixel.
 	 * <p>
 	 * The first instruction that can encode the pixel will end the encoding phase.
+	 * <p>
+	 * Colors are passed packed (see {@link QoiFlowColor#packRGBA(int, int, int, int)}) so the encoder doesn't have
+	 * to allocate anything per pixel. Any differences between the colors should be calculated locally.
 	 *
+	 * @param previous The previous color, packed as {@code 0xRRGGBBAA}
+	 * @param color    The color to encode, packed as {@code 0xRRGGBBAA}
 	 * @return The amount of bytes this instruction stored in {@code dst} encode the color,
 	 * or -1 if it could not encode.
 	 */
-	public abstract int encode(QoiFlowPixelData pixel, byte[] dst);
+	public abstract int encode(int previous, int color, byte[] dst);
 
 	/**
 	 * Give the instruction the opportunity to emit deferred data at the end of the stream.
 	 * <p>
 	 * This marks the end of an encoding cycle.
-	 * Continuing to use this instance without first calling {@link #reset()} results in unspecified behavior.
+	 * Continuing to use this instance afterwards results in unspecified behavior.
 	 * <p>
 	 * This is required, for example, for RLE, to emit instructions when the counter is {@code > 1}.
 	 * <p>
 	 * Does nothing unless overridden.
 	 */
-	public void postEncode(ByteBuffer dst) {
+	public void postEncode(QoiFlowOutput dst) {
 	}
 
 	/**
-	 * Decodes the pixel .
+	 * Decodes the pixel.
 	 * <p>
-	 * The first instruction that can encode the pixel will end the encoding phase.
+	 * The codec only calls this for codes in the range of this instruction.
+	 * <p>
+	 * Like encoding, this works on packed colors, so the decoder doesn't have to allocate anything per pixel.
 	 *
-	 * @return The amount of bytes this instruction stored in {@code dst} encode the color,
-	 * or -1 if it could not encode.
+	 * @param localCode The first byte of the instruction, minus {@link #getCodeOffset()}
+	 * @param lastColor The previous decoded color, packed as {@code 0xRRGGBBAA}
+	 * @return The decoded color and the number of times to repeat it, packed with
+	 * {@link QoiFlowColorRun#pack(int, int)}.
 	 */
-	public abstract QoiFlowColorRun decode(int code, ByteBuffer src, QoiFlowColor lastColor);
+	public abstract long decode(int localCode, ByteBuffer src, int lastColor);
 
 	/**
 	 * Give the instruction the opportunity to update it's internal state depending on the decoded color.
@@ -166,8 +242,10 @@ public abstract class QoiFlowInstruction {
 	 * This is required, for example, for Color History, to record a color not decoded by itself.
 	 * <p>
 	 * Does nothing unless overridden.
+	 *
+	 * @param color The decoded color, packed as {@code 0xRRGGBBAA}
 	 */
-	public void postDecode(QoiFlowColor color) {
+	public void postDecode(int color) {
 	}
 
 	/**
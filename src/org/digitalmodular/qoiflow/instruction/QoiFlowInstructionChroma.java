@@ -3,9 +3,7 @@ package org.digitalmodular.qoiflow.instruction;
 import java.nio.ByteBuffer;
 
 import org.digitalmodular.qoiflow.QoiFlowColor;
-import org.digitalmodular.qoiflow.QoiFlowColorChroma;
 import org.digitalmodular.qoiflow.QoiFlowColorRun;
-import org.digitalmodular.qoiflow.QoiFlowPixelData;
 
 /**
  * @author Mark Jeronimus
@@ -64,33 +62,41 @@ public class QoiFlowInstructionChroma extends QoiFlowInstruction {
 	}
 
 	@Override
-	public int encode(QoiFlowPixelData pixel, byte[] dst) {
-		QoiFlowColorChroma chroma = pixel.getChroma();
-
-		if ((bitsA == 0) && chroma.da() != 0) {
+	public int encode(int previous, int color, byte[] dst) {
+		// The lower 8 bits of a difference only depend on the lower 8 bits of the operands.
+		int deltaR = (color >>> 24) - (previous >>> 24);
+		int deltaG = (color >> 16) - (previous >> 16);
+		int deltaB = (color >> 8) - (previous >> 8);
+
+		int chromaDY = (byte)deltaG;
+		int chromaCB = (byte)(deltaB - deltaG);
+		int chromaCR = (byte)(deltaR - deltaG);
+		int chromaDA = (byte)(color - previous);
+
+		if ((bitsA == 0) && chromaDA != 0) {
 			return -1;
 		}
 
-		int dy = chroma.dy() << msbShiftDY;
-		int cb = chroma.cb() << msbShiftCB;
-		int cr = chroma.cr() << msbShiftCR;
-		int da = chroma.da() << msbShiftDA;
+		int dy = chromaDY << msbShiftDY;
+		int cb = chromaCB << msbShiftCB;
+		int cr = chromaCR << msbShiftCR;
+		int da = chromaDA << msbShiftDA;
 
 		int recoveredDY = (dy >> msbShiftDY);
 		int recoveredCB = (cb >> msbShiftCB);
 		int recoveredCR = (cr >> msbShiftCR);
 		int recoveredDA = (da >> msbShiftDA);
 		if (bitsA > 0) {
-			if (recoveredDY != chroma.dy() ||
-			    recoveredCB != chroma.cb() ||
-			    recoveredCR != chroma.cr() ||
-			    recoveredDA != chroma.da()) {
+			if (recoveredDY != chromaDY ||
+			    recoveredCB != chromaCB ||
+			    recoveredCR != chromaCR ||
+			    recoveredDA != chromaDA) {
 				return -1;
 			}
 		} else {
-			if (recoveredDY != chroma.dy() ||
-			    recoveredCB != chroma.cb() ||
-			    recoveredCR != chroma.cr()) {
+			if (recoveredDY != chromaDY ||
+			    recoveredCB != chromaCB ||
+			    recoveredCR != chromaCR) {
 				return -1;
 			}
 		}
@@ -114,12 +120,13 @@ public class QoiFlowInstructionChroma extends QoiFlowInstruction {
 
 		dst[0] += codeOffset;
 
-		if (statistics != null) {
+		if (countStatistics(1, numBytes)) {
+			QoiFlowColor statisticsColor = QoiFlowColor.fromRGBA(color);
 			if (bitsA > 0) {
 				statistics.record(
-						this, dst, 0, numBytes, pixel.getColor(), recoveredDY, recoveredCB, recoveredCR, recoveredDA);
+						this, dst, 0, numBytes, statisticsColor, recoveredDY, recoveredCB, recoveredCR, recoveredDA);
 			} else {
-				statistics.record(this, dst, 0, numBytes, pixel.getColor(), recoveredDY, recoveredCB, recoveredCR);
+				statistics.record(this, dst, 0, numBytes, statisticsColor, recoveredDY, recoveredCB, recoveredCR);
 			}
 		}
 
@@ -127,8 +134,8 @@ public class QoiFlowInstructionChroma extends QoiFlowInstruction {
 	}
 
 	@Override
-	public QoiFlowColorRun decode(int code, ByteBuffer src, QoiFlowColor lastColor) {
-		int rgba = code - codeOffset;
+	public long decode(int localCode, ByteBuffer src, int lastColor) {
+		int rgba = localCode;
 
 		for (int i = 1; i < numBytes; i++) {
 			rgba = (rgba << 8) | (src.get() & 0xFF);
@@ -139,17 +146,22 @@ public class QoiFlowInstructionChroma extends QoiFlowInstruction {
 		int cr = (rgba << dataShiftCR) >> msbShiftCR;
 		int da = bitsA == 0 ? 0 : (rgba << dataShiftDA) >> msbShiftDA;
 
-		QoiFlowColor color = new QoiFlowColorChroma(dy, cb, cr, da).applyTo(lastColor);
+		// Components wrap around, which packRGBA takes care of.
+		int color = QoiFlowColor.packRGBA((lastColor >>> 24) + dy + cr,
+		                                  (lastColor >> 16) + dy,
+		                                  (lastColor >> 8) + dy + cb,
+		                                  lastColor + da);
 
-		if (statistics != null) {
+		if (countStatistics(1, numBytes)) {
+			QoiFlowColor statisticsColor = QoiFlowColor.fromRGBA(color);
 			if (bitsA > 0) {
-				statistics.record(this, src, numBytes, color, dy, cb, cr, da);
+				statistics.record(this, src, numBytes, statisticsColor, dy, cb, cr, da);
 			} else {
-				statistics.record(this, src, numBytes, color, dy, cb, cr);
+				statistics.record(this, src, numBytes, statisticsColor, dy, cb, cr);
 			}
 		}
 
-		return new QoiFlowColorRun(color, 1);
+		return QoiFlowColorRun.pack(color, 1);
 	}
 
 	@Override
@@ -161,9 +173,9 @@ public class QoiFlowInstructionChroma extends QoiFlowInstruction {
 	@Override
 	public String toString() {
 		if (bitsA > 0) {
-			return "CHROMA" + bitsR + bitsR + bitsR + bitsA;
+			return "CHROMA" + bitsR + bitsG + bitsB + bitsA;
 		} else {
-			return "CHROMA" + bitsR + bitsR + bitsR;
+			return "CHROMA" + bitsR + bitsG + bitsB;
 		}
 	}
 }
@@ -5,7 +5,6 @@ import java.util.Arrays;
 
 import org.digitalmodular.qoiflow.QoiFlowColor;
 import org.digitalmodular.qoiflow.QoiFlowColorRun;
-import org.digitalmodular.qoiflow.QoiFlowPixelData;
 
 /**
  * @author Mark Jeronimus
@@ -14,11 +13,29 @@ import org.digitalmodular.qoiflow.QoiFlowPixelData;
 public class QoiFlowInstructionColorHistory extends QoiFlowInstruction {
 	public static final QoiFlowColor INITIAL_COLOR = new QoiFlowColor(0, 0, 0, 0);
 
-	private QoiFlowColor[] recentColorsList = new QoiFlowColor[1];
-	private int            recentColorIndex = 0;
+	private static final int INITIAL_RGBA = INITIAL_COLOR.toRGBA();
+
+	/** Ring buffer, packed as {@code 0xRRGGBBAA} */
+	private int[]   recentColorsList = new int[1];
+	private int     recentColorIndex = 0;
+	private boolean recentColorsFull = false;
+
+	/**
+	 * Open-addressing hash index (with linear probing) into {@link #recentColorsList}, keyed on the packed color.
+	 * <p>
+	 * Every element is an index into the ring buffer, or -1 when empty.
+	 * The table is at least twice the size of the ring buffer, so probe sequences stay short.
+	 * <p>
+	 * Only colors that were explicitly added are indexed.
+	 * Slots still holding {@link #INITIAL_COLOR} from the start of the stream are not,
+	 * as they're all identical and the linear search this replaces would always find the first of them.
+	 */
+	private int[] hashTable = {-1, -1};
+	private int   hashShift = 31;
 
 	// Encoder state
-	private QoiFlowColor lastColor = null;
+	private boolean hasLastColor = false;
+	private int     lastColor    = 0;
 
 	// Decoder state
 	private boolean pixelDecoded = false;
@@ -38,80 +55,162 @@ public class QoiFlowInstructionColorHistory extends QoiFlowInstruction {
 	}
 
 	@Override
-	public void setCodeOffsetAndCount(int codeOffset, int calculatedCodeCount) {
-		super.setCodeOffsetAndCount(codeOffset, calculatedCodeCount);
+	public QoiFlowInstructionColorHistory newStreamInstance() {
+		QoiFlowInstructionColorHistory instance = copyConfigurationTo(new QoiFlowInstructionColorHistory());
 
-		recentColorsList = new QoiFlowColor[calculatedCodeCount];
-	}
+		instance.recentColorsList = new int[calculatedCodeCount];
+		Arrays.fill(instance.recentColorsList, INITIAL_RGBA);
 
-	@Override
-	public void reset() {
-		Arrays.fill(recentColorsList, INITIAL_COLOR);
-		recentColorIndex = 0;
-		lastColor = null;
-		pixelDecoded = false;
+		int hashBits = 32 - Integer.numberOfLeadingZeros(calculatedCodeCount * 2 - 1);
+		instance.hashTable = new int[1 << hashBits];
+		instance.hashShift = 32 - hashBits;
+		Arrays.fill(instance.hashTable, -1);
+
+		return instance;
 	}
 
 	@Override
-	public int encode(QoiFlowPixelData pixel, byte[] dst) {
-		QoiFlowColor color = pixel.getColor();
-
-		boolean repeatColor = color.equals(lastColor);
-		lastColor = null;
+	public int encode(int previous, int color, byte[] dst) {
+		boolean repeatColor = hasLastColor && color == lastColor;
+		hasLastColor = false;
 
 		if (repeatColor) {
 			return -1;
 		}
 
-		for (int i = 0; i < recentColorsList.length; i++) {
-			if (recentColorsList[i].equals(color)) {
-				dst[0] = (byte)(codeOffset + i);
-
-				if (statistics != null) {
-					statistics.record(this, dst, 0, 1, color, i);
-				}
+		int index = findColor(color);
+		if (index >= 0) {
+			dst[0] = (byte)(codeOffset + index);
 
-				lastColor = color;
-				return 1;
+			if (countStatistics(1, 1)) {
+				statistics.record(this, dst, 0, 1, QoiFlowColor.fromRGBA(color), index);
 			}
+
+			hasLastColor = true;
+			lastColor = color;
+			return 1;
 		}
 
 		// Unknown colors get added.
-		recentColorsList[recentColorIndex] = color;
-		recentColorIndex = (recentColorIndex + 1) % recentColorsList.length;
+		addColor(color);
 
 		return -1;
 	}
 
 	@Override
-	public QoiFlowColorRun decode(int code, ByteBuffer src, QoiFlowColor lastColor) {
+	public long decode(int localCode, ByteBuffer src, int lastColor) {
 		pixelDecoded = true;
 
-		int          index = code - codeOffset;
-		QoiFlowColor color = recentColorsList[index];
+		int index = localCode;
+		int color = recentColorsList[index];
 
-		if (statistics != null) {
-			statistics.record(this, src, 1, color, index);
+		if (countStatistics(1, 1)) {
+			statistics.record(this, src, 1, QoiFlowColor.fromRGBA(color), index);
 		}
 
-		return new QoiFlowColorRun(color, 1);
+		return QoiFlowColorRun.pack(color, 1);
 	}
 
 	@Override
-	public void postDecode(QoiFlowColor color) {
+	public void postDecode(int color) {
 		if (pixelDecoded) {
 			pixelDecoded = false;
 		} else {
-			for (QoiFlowColor storedColor : recentColorsList) {
-				if (storedColor.equals(color)) {
-					return;
-				}
+			if (findColor(color) >= 0) {
+				return;
 			}
 
 			// Unknown colors get added.
-			recentColorsList[recentColorIndex] = color;
-			recentColorIndex = (recentColorIndex + 1) % recentColorsList.length;
+			addColor(color);
+		}
+	}
+
+	/**
+	 * @return The lowest index in the ring buffer that contains the color, or -1 if not present.
+	 */
+	private int findColor(int color) {
+		int mask = hashTable.length - 1;
+		for (int h = hash(color); ; h = (h + 1) & mask) {
+			int index = hashTable[h];
+			if (index < 0) {
+				break;
+			} else if (recentColorsList[index] == color) {
+				return index;
+			}
 		}
+
+		// Added colors are never equal to the initial color until every initial slot has been overwritten,
+		// because the initial color is found (and not added) before that. So the first initial slot is the lowest.
+		if (!recentColorsFull && color == INITIAL_RGBA) {
+			return recentColorIndex;
+		}
+
+		return -1;
+	}
+
+	private void addColor(int color) {
+		int index = recentColorIndex;
+
+		if (recentColorsFull) {
+			removeFromHashTable(index);
+		}
+
+		recentColorsList[index] = color;
+		addToHashTable(index);
+
+		recentColorIndex = (index + 1) % recentColorsList.length;
+		if (recentColorIndex == 0) {
+			recentColorsFull = true;
+		}
+	}
+
+	private void addToHashTable(int index) {
+		int mask = hashTable.length - 1;
+		int h    = hash(recentColorsList[index]);
+		while (hashTable[h] >= 0) {
+			h = (h + 1) & mask;
+		}
+
+		hashTable[h] = index;
+	}
+
+	/**
+	 * Removes the entry pointing to the given ring buffer index, and closes the gap by shifting back later entries
+	 * of the probe sequence (so no tombstones are required).
+	 * <p>
+	 * Must be called before the ring buffer element is overwritten.
+	 */
+	private void removeFromHashTable(int index) {
+		int mask = hashTable.length - 1;
+		int h    = hash(recentColorsList[index]);
+		while (hashTable[h] != index) {
+			h = (h + 1) & mask;
+		}
+
+		int gap = h;
+		int j   = h;
+		while (true) {
+			j = (j + 1) & mask;
+
+			int entry = hashTable[j];
+			if (entry < 0) {
+				break;
+			}
+
+			// Move the entry into the gap, unless its home position is cyclically in (gap, j].
+			int     home  = hash(recentColorsList[entry]);
+			boolean stays = gap <= j ? gap < home && home <= j : gap < home || home <= j;
+			if (!stays) {
+				hashTable[gap] = entry;
+				gap = j;
+			}
+		}
+
+		hashTable[gap] = -1;
+	}
+
+	private int hash(int color) {
+		return (color * 0x9E3779B9) >>> hashShift;
 	}
 
 	@Override
@@ -3,9 +3,7 @@ package org.digitalmodular.qoiflow.instruction;
 import java.nio.ByteBuffer;
 
 import org.digitalmodular.qoiflow.QoiFlowColor;
-import org.digitalmodular.qoiflow.QoiFlowColorDelta;
 import org.digitalmodular.qoiflow.QoiFlowColorRun;
-import org.digitalmodular.qoiflow.QoiFlowPixelData;
 
 /**
  * @author Mark Jeronimus
@@ -64,33 +62,37 @@ public class QoiFlowInstructionDelta extends QoiFlowInstruction {
 	}
 
 	@Override
-	public int encode(QoiFlowPixelData pixel, byte[] dst) {
-		QoiFlowColorDelta delta = pixel.getDelta();
-
-		if ((bitsA == 0) && delta.da() != 0) {
+	public int encode(int previous, int color, byte[] dst) {
+		// The lower 8 bits of a difference only depend on the lower 8 bits of the operands.
+		int deltaR = (byte)((color >>> 24) - (previous >>> 24));
+		int deltaG = (byte)((color >> 16) - (previous >> 16));
+		int deltaB = (byte)((color >> 8) - (previous >> 8));
+		int deltaA = (byte)(color - previous);
+
+		if ((bitsA == 0) && deltaA != 0) {
 			return -1;
 		}
 
-		int dr = delta.dr() << msbShiftDR;
-		int dg = delta.dg() << msbShiftDG;
-		int db = delta.db() << msbShiftDB;
-		int da = delta.da() << msbShiftDA;
+		int dr = deltaR << msbShiftDR;
+		int dg = deltaG << msbShiftDG;
+		int db = deltaB << msbShiftDB;
+		int da = deltaA << msbShiftDA;
 
 		int recoveredDR = (dr >> msbShiftDR);
 		int recoveredDG = (dg >> msbShiftDG);
 		int recoveredDB = (db >> msbShiftDB);
 		int recoveredDA = (da >> msbShiftDA);
 		if (bitsA > 0) {
-			if (recoveredDR != delta.dr() ||
-			    recoveredDG != delta.dg() ||
-			    recoveredDB != delta.db() ||
-			    recoveredDA != delta.da()) {
+			if (recoveredDR != deltaR ||
+			    recoveredDG != deltaG ||
+			    recoveredDB != deltaB ||
+			    recoveredDA != deltaA) {
 				return -1;
 			}
 		} else {
-			if (recoveredDR != delta.dr() ||
-			    recoveredDG != delta.dg() ||
-			    recoveredDB != delta.db()) {
+			if (recoveredDR != deltaR ||
+			    recoveredDG != deltaG ||
+			    recoveredDB != deltaB) {
 				return -1;
 			}
 		}
@@ -114,12 +116,13 @@ public class QoiFlowInstructionDelta extends QoiFlowInstruction {
 
 		dst[0] += codeOffset;
 
-		if (statistics != null) {
+		if (countStatistics(1, numBytes)) {
+			QoiFlowColor statisticsColor = QoiFlowColor.fromRGBA(color);
 			if (bitsA > 0) {
 				statistics.record(
-						this, dst, 0, numBytes, pixel.getColor(), recoveredDR, recoveredDG, recoveredDB, recoveredDA);
+						this, dst, 0, numBytes, statisticsColor, recoveredDR, recoveredDG, recoveredDB, recoveredDA);
 			} else {
-				statistics.record(this, dst, 0, numBytes, pixel.getColor(), recoveredDR, recoveredDG, recoveredDB);
+				statistics.record(this, dst, 0, numBytes, statisticsColor, recoveredDR, recoveredDG, recoveredDB);
 			}
 		}
 
@@ -127,8 +130,8 @@ public class QoiFlowInstructionDelta extends QoiFlowInstruction {
 	}
 
 	@Override
-	public QoiFlowColorRun decode(int code, ByteBuffer src, QoiFlowColor lastColor) {
-		int rgba = code - codeOffset;
+	public long decode(int localCode, ByteBuffer src, int lastColor) {
+		int rgba = localCode;
 
 		for (int i = 1; i < numBytes; i++) {
 			rgba = (rgba << 8) | (src.get() & 0xFF);
@@ -139,17 +142,22 @@ public class QoiFlowInstructionDelta extends QoiFlowInstruction {
 		int db = (rgba << dataShiftDB) >> msbShiftDB;
 		int da = bitsA == 0 ? 0 : (rgba << dataShiftDA) >> msbShiftDA;
 
-		QoiFlowColor color = new QoiFlowColorDelta(dr, dg, db, da).applyTo(lastColor);
+		// Components wrap around, which packRGBA takes care of.
+		int color = QoiFlowColor.packRGBA((lastColor >>> 24) + dr,
+		                                  (lastColor >> 16) + dg,
+		                                  (lastColor >> 8) + db,
+		                                  lastColor + da);
 
-		if (statistics != null) {
+		if (countStatistics(1, numBytes)) {
+			QoiFlowColor statisticsColor = QoiFlowColor.fromRGBA(color);
 			if (bitsA > 0) {
-				statistics.record(this, src, numBytes, color, dr, dg, db, da);
+				statistics.record(this, src, numBytes, statisticsColor, dr, dg, db, da);
 			} else {
-				statistics.record(this, src, numBytes, color, dr, dg, db);
+				statistics.record(this, src, numBytes, statisticsColor, dr, dg, db);
 			}
 		}
 
-		return new QoiFlowColorRun(color, 1);
+		return QoiFlowColorRun.pack(color, 1);
 	}
 
 	@Override
@@ -161,9 +169,9 @@ public class QoiFlowInstructionDelta extends QoiFlowInstruction {
 	@Override
 	public String toString() {
 		if (bitsA > 0) {
-			return "DELTA" + bitsR + bitsR + bitsR + bitsA;
+			return "DELTA" + bitsR + bitsG + bitsB + bitsA;
 		} else {
-			return "DELTA" + bitsR + bitsR + bitsR;
+			return "DELTA" + bitsR + bitsG + bitsB;
 		}
 	}
 }
@@ -3,9 +3,8 @@ package org.digitalmodular.qoiflow.instruction;
 import java.nio.ByteBuffer;
 
 import org.digitalmodular.qoiflow.QoiFlowColor;
-import org.digitalmodular.qoiflow.QoiFlowColorDelta;
 import org.digitalmodular.qoiflow.QoiFlowColorRun;
-import org.digitalmodular.qoiflow.QoiFlowPixelData;
+import org.digitalmodular.qoiflow.QoiFlowStatistics;
 
 /**
  * @author Mark Jeronimus
@@ -32,35 +31,33 @@ public class QoiFlowInstructionMaskRGBA extends QoiFlowInstruction {
 	}
 
 	@Override
-	public int encode(QoiFlowPixelData pixel, byte[] dst) {
-		QoiFlowColorDelta delta = pixel.getDelta();
-		if ((bitsA == 0) && delta.da() != 0) {
+	public int encode(int previous, int color, byte[] dst) {
+		int changed = color ^ previous;
+		if ((bitsA == 0) && (changed & 0xFF) != 0) {
 			return -1;
 		}
 
-		QoiFlowColor color = pixel.getColor();
-
 		int p        = 1;
 		int mask     = 0b0000;
 		int numBytes = 1;
-		if (delta.dr() != 0) {
-			dst[p++] = (byte)color.r();
+		if ((changed & 0xFF000000) != 0) {
+			dst[p++] = (byte)(color >>> 24);
 			mask |= 0b1000;
 			numBytes++;
 		}
-		if (delta.dg() != 0) {
-			dst[p++] = (byte)color.g();
+		if ((changed & 0x00FF0000) != 0) {
+			dst[p++] = (byte)(color >> 16);
 			mask |= 0b0100;
 			numBytes++;
 		}
-		if (delta.db() != 0) {
-			dst[p++] = (byte)color.b();
+		if ((changed & 0x0000FF00) != 0) {
+			dst[p++] = (byte)(color >> 8);
 			mask |= 0b0010;
 			numBytes++;
 		}
 		if (bitsA > 0) {
-			if (delta.da() != 0) {
-				dst[p] = (byte)color.a();
+			if ((changed & 0x000000FF) != 0) {
+				dst[p] = (byte)color;
 				mask |= 0b0001;
 				numBytes++;
 			}
@@ -76,20 +73,20 @@ public class QoiFlowInstructionMaskRGBA extends QoiFlowInstruction {
 			dst[0] = (byte)(codeOffset + (mask >> 1));
 		}
 
-		if (statistics != null) {
-			logStatistics(dst, mask, numBytes, color);
+		if (countStatistics(1, numBytes)) {
+			logStatistics(dst, mask, numBytes, QoiFlowColor.fromRGBA(color));
 		}
 
 		return numBytes;
 	}
 
 	@Override
-	public QoiFlowColorRun decode(int code, ByteBuffer src, QoiFlowColor lastColor) {
+	public long decode(int localCode, ByteBuffer src, int lastColor) {
 		int mask;
 		if (bitsA > 0) {
-			mask = (code - codeOffset) & 0b1111;
+			mask = localCode & 0b1111;
 		} else {
-			mask = ((code - codeOffset) & 0b111) << 1;
+			mask = (localCode & 0b111) << 1;
 		}
 
 		int r;
@@ -100,32 +97,32 @@ public class QoiFlowInstructionMaskRGBA extends QoiFlowInstruction {
 		if ((mask & 0b1000) != 0) {
 			r = src.get() & 0xFF;
 		} else {
-			r = lastColor.r();
+			r = lastColor >>> 24;
 		}
 		if ((mask & 0b0100) != 0) {
 			g = src.get() & 0xFF;
 		} else {
-			g = lastColor.g();
+			g = (lastColor >> 16) & 0xFF;
 		}
 		if ((mask & 0b0010) != 0) {
 			b = src.get() & 0xFF;
 		} else {
-			b = lastColor.b();
+			b = (lastColor >> 8) & 0xFF;
 		}
 		if ((mask & 0b0001) != 0) {
 			a = src.get() & 0xFF;
 		} else {
-			a = lastColor.a();
+			a = lastColor & 0xFF;
 		}
 
-		QoiFlowColor color = new QoiFlowColor(r, g, b, a);
+		int color = QoiFlowColor.packRGBA(r, g, b, a);
 
-		if (statistics != null) {
-			int numBytes = Integer.bitCount(mask) + 1;
-			logStatistics(src, mask, numBytes, color);
+		int numBytes = Integer.bitCount(mask) + 1;
+		if (countStatistics(1, numBytes)) {
+			logStatistics(src, mask, numBytes, QoiFlowColor.fromRGBA(color));
 		}
 
-		return new QoiFlowColorRun(color, 1);
+		return QoiFlowColorRun.pack(color, 1);
 	}
 
 	@Override
@@ -139,7 +136,11 @@ public class QoiFlowInstructionMaskRGBA extends QoiFlowInstruction {
 	}
 
 	private void logStatistics(ByteBuffer src, int mask, int numBytes, QoiFlowColor color) {
-		logStatistics(src.array(), mask, src.position() - numBytes, numBytes, color);
+		if (src.hasArray()) {
+			logStatistics(src.array(), mask, src.arrayOffset() + src.position() - numBytes, numBytes, color);
+		} else {
+			logStatistics(QoiFlowStatistics.copyRecentBytes(src, numBytes), mask, 0, numBytes, color);
+		}
 	}
 
 	private void logStatistics(byte[] dst, int mask, int numBytes, QoiFlowColor color) {
@@ -4,7 +4,6 @@ import java.nio.ByteBuffer;
 
 import org.digitalmodular.qoiflow.QoiFlowColor;
 import org.digitalmodular.qoiflow.QoiFlowColorRun;
-import org.digitalmodular.qoiflow.QoiFlowPixelData;
 
 /**
  * @author Mark Jeronimus
@@ -65,33 +64,36 @@ public class QoiFlowInstructionRGBA extends QoiFlowInstruction {
 	}
 
 	@Override
-	public int encode(QoiFlowPixelData pixel, byte[] dst) {
-		if ((bitsA == 0) && pixel.getDelta().da() != 0) {
+	public int encode(int previous, int color, byte[] dst) {
+		if ((bitsA == 0) && ((color ^ previous) & 0xFF) != 0) {
 			return -1;
 		}
 
-		QoiFlowColor color = pixel.getColor();
+		int colorR = color >>> 24;
+		int colorG = (color >> 16) & 0xFF;
+		int colorB = (color >> 8) & 0xFF;
+		int colorA = color & 0xFF;
 
-		int r = ((color.r() << 24) >>> shiftR) & maskR;
-		int g = ((color.g() << 24) >>> shiftG) & maskG;
-		int b = ((color.b() << 24) >>> shiftB) & maskB;
-		int a = ((color.a() << 24) >>> shiftA) & maskA;
+		int r = ((colorR << 24) >>> shiftR) & maskR;
+		int g = ((colorG << 24) >>> shiftG) & maskG;
+		int b = ((colorB << 24) >>> shiftB) & maskB;
+		int a = ((colorA << 24) >>> shiftA) & maskA;
 
 		int recoveredR = r << shiftR >>> 24;
 		int recoveredG = g << shiftG >>> 24;
 		int recoveredB = b << shiftB >>> 24;
 		int recoveredA = a << shiftA >>> 24;
 		if (bitsA > 0) {
-			if (recoveredR != color.r() ||
-			    recoveredG != color.g() ||
-			    recoveredB != color.b() ||
-			    recoveredA != color.a()) {
+			if (recoveredR != colorR ||
+			    recoveredG != colorG ||
+			    recoveredB != colorB ||
+			    recoveredA != colorA) {
 				return -1;
 			}
 		} else {
-			if (recoveredR != color.r() ||
-			    recoveredG != color.g() ||
-			    recoveredB != color.b()) {
+			if (recoveredR != colorR ||
+			    recoveredG != colorG ||
+			    recoveredB != colorB) {
 				return -1;
 			}
 		}
@@ -108,11 +110,13 @@ public class QoiFlowInstructionRGBA extends QoiFlowInstruction {
 
 		dst[0] += codeOffset;
 
-		if (statistics != null) {
+		if (countStatistics(1, numBytes)) {
+			QoiFlowColor statisticsColor = QoiFlowColor.fromRGBA(color);
 			if (bitsA > 0) {
-				statistics.record(this, dst, 0, numBytes, color, recoveredR, recoveredG, recoveredB, recoveredA);
+				statistics.record(
+						this, dst, 0, numBytes, statisticsColor, recoveredR, recoveredG, recoveredB, recoveredA);
 			} else {
-				statistics.record(this, dst, 0, numBytes, color, recoveredR, recoveredG, recoveredB);
+				statistics.record(this, dst, 0, numBytes, statisticsColor, recoveredR, recoveredG, recoveredB);
 			}
 		}
 
@@ -120,8 +124,8 @@ public class QoiFlowInstructionRGBA extends QoiFlowInstruction {
 	}
 
 	@Override
-	public QoiFlowColorRun decode(int code, ByteBuffer src, QoiFlowColor lastColor) {
-		int rgba = code - codeOffset;
+	public long decode(int localCode, ByteBuffer src, int lastColor) {
+		int rgba = localCode;
 
 		for (int i = 1; i < numBytes; i++) {
 			rgba = (rgba << 8) | (src.get() & 0xFF);
@@ -130,19 +134,21 @@ public class QoiFlowInstructionRGBA extends QoiFlowInstruction {
 		int r = ((rgba & maskR) << shiftR) >>> 24;
 		int g = ((rgba & maskG) << shiftG) >>> 24;
 		int b = ((rgba & maskB) << shiftB) >>> 24;
-		int a = ((rgba & maskA) << shiftA) >>> 24;
+		// Without alpha bits, the encoder only accepts colors with unchanged alpha.
+		int a = bitsA == 0 ? lastColor & 0xFF : ((rgba & maskA) << shiftA) >>> 24;
 
-		QoiFlowColor color = new QoiFlowColor(r, g, b, a);
+		int color = QoiFlowColor.packRGBA(r, g, b, a);
 
-		if (statistics != null) {
+		if (countStatistics(1, numBytes)) {
+			QoiFlowColor statisticsColor = QoiFlowColor.fromRGBA(color);
 			if (bitsA > 0) {
-				statistics.record(this, src, numBytes, color, r, g, b, a);
+				statistics.record(this, src, numBytes, statisticsColor, r, g, b, a);
 			} else {
-				statistics.record(this, src, numBytes, color, r, g, b);
+				statistics.record(this, src, numBytes, statisticsColor, r, g, b);
 			}
 		}
 
-		return new QoiFlowColorRun(color, 1);
+		return QoiFlowColorRun.pack(color, 1);
 	}
 
 	@Override
@@ -154,9 +160,9 @@ public class QoiFlowInstructionRGBA extends QoiFlowInstruction {
 	@Override
 	public String toString() {
 		if (bitsA > 0) {
-			return "RGBA" + bitsR + bitsR + bitsR + bitsA;
+			return "RGBA" + bitsR + bitsG + bitsB + bitsA;
 		} else {
-			return "RGB" + bitsR + bitsR + bitsR;
+			return "RGB" + bitsR + bitsG + bitsB;
 		}
 	}
 }
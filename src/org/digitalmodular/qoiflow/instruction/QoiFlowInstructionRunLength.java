@@ -1,10 +1,11 @@
 package org.digitalmodular.qoiflow.instruction;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.digitalmodular.qoiflow.QoiFlowColor;
 import org.digitalmodular.qoiflow.QoiFlowColorRun;
-import org.digitalmodular.qoiflow.QoiFlowPixelData;
+import org.digitalmodular.qoiflow.QoiFlowOutput;
 import org.digitalmodular.qoiflow.QoiFlowStreamCodec;
 
 /**
@@ -13,11 +14,13 @@ import org.digitalmodular.qoiflow.QoiFlowStreamCodec;
 // Created 2022-06-12
 public class QoiFlowInstructionRunLength extends QoiFlowInstruction {
 	// Encoder state
-	private int repeatCount = 0;
+	private int    repeatCount   = 0;
+	private int    repeatedColor = QoiFlowStreamCodec.START_COLOR.toRGBA();
+	private byte[] runBytes      = new byte[32];
 
 	// Decoder state
-	private QoiFlowColor lastColor        = QoiFlowStreamCodec.START_COLOR;
-	private int          repeatMultiplier = 1;
+	private int lastColor        = QoiFlowStreamCodec.START_COLOR.toRGBA();
+	private int repeatMultiplier = 1;
 
 	public QoiFlowInstructionRunLength() {
 		super(1, 1, 1, 0); // Bits are irrelevant
@@ -35,23 +38,21 @@ public class QoiFlowInstructionRunLength extends QoiFlowInstruction {
 	}
 
 	@Override
-	public void reset() {
-		repeatCount = 0;
-		lastColor = QoiFlowStreamCodec.START_COLOR;
-		repeatMultiplier = 1;
+	public QoiFlowInstructionRunLength newStreamInstance() {
+		return copyConfigurationTo(new QoiFlowInstructionRunLength());
 	}
 
 	@Override
-	public void preEncode(QoiFlowPixelData pixel, ByteBuffer dst) {
-		if (!pixel.getColor().equals(pixel.getPrevious())) {
+	public void preEncode(int previous, int color, QoiFlowOutput dst) {
+		if (color != previous) {
 			postEncode(dst);
 		}
 	}
 
 	@Override
-	public int encode(QoiFlowPixelData pixel, byte[] dst) {
-		lastColor = pixel.getPrevious();
-		if (pixel.getColor().equals(lastColor)) {
+	public int encode(int previous, int color, byte[] dst) {
+		repeatedColor = previous;
+		if (color == previous) {
 			repeatCount++;
 			return 0;
 		}
@@ -59,8 +60,17 @@ public class QoiFlowInstructionRunLength extends QoiFlowInstruction {
 		return -1;
 	}
 
+	/**
+	 * Does the same as {@code count} calls to {@link #encode(int, int, byte[])} with {@code color} as both the
+	 * previous and the current color.
+	 */
+	public void encodeRepeats(int color, int count) {
+		repeatedColor = color;
+		repeatCount += count;
+	}
+
 	@Override
-	public void postEncode(ByteBuffer dst) {
+	public void postEncode(QoiFlowOutput dst) {
 		// Encode the value (minus 1) using bijective notation (rather than the more common positional notation).
 		// If there are 26 symbols to choose from, bijective notation is equal to spreadsheet column notation.
 		// if there are 10 symbols to choose from, the first few values are encoded as:
@@ -84,14 +94,25 @@ public class QoiFlowInstructionRunLength extends QoiFlowInstruction {
 				int countMinusOne = remainingValue % calculatedCodeCount;
 				int data          = codeOffset + countMinusOne;
 
-				dst.put((byte)data);
-				len++;
+				if (len == runBytes.length) {
+					// Only possible with very few codes, where the number of digits grows quickly.
+					runBytes = Arrays.copyOf(runBytes, len * 2);
+				}
+
+				runBytes[len++] = (byte)data;
 
 				remainingValue = ((remainingValue - countMinusOne) / calculatedCodeCount) - 1;
 			} while (remainingValue >= 0);
 
-			if (statistics != null) {
-				statistics.record(this, dst.array(), dst.position() - len, len, lastColor, repeatCount);
+			dst.putInstruction(this, runBytes, 0, len);
+
+			if (countStatistics(repeatCount, len)) {
+				statistics.record(this,
+				                  runBytes,
+				                  0,
+				                  len,
+				                  QoiFlowColor.fromRGBA(repeatedColor),
+				                  repeatCount);
 			}
 
 			repeatCount = 0;
@@ -99,20 +120,20 @@ public class QoiFlowInstructionRunLength extends QoiFlowInstruction {
 	}
 
 	@Override
-	public QoiFlowColorRun decode(int code, ByteBuffer src, QoiFlowColor lastColor) {
-		repeatCount = (code - codeOffset + 1) * repeatMultiplier;
+	public long decode(int localCode, ByteBuffer src, int lastColor) {
+		repeatCount = (localCode + 1) * repeatMultiplier;
 		repeatMultiplier *= calculatedCodeCount;
 
-		if (statistics != null) {
-			statistics.record(this, src, 1, lastColor, repeatCount);
+		if (countStatistics(repeatCount, 1)) {
+			statistics.record(this, src, 1, QoiFlowColor.fromRGBA(lastColor), repeatCount);
 		}
 
-		return new QoiFlowColorRun(lastColor, repeatCount);
+		return QoiFlowColorRun.pack(lastColor, repeatCount);
 	}
 
 	@Override
-	public void postDecode(QoiFlowColor color) {
-		if (!lastColor.equals(color)) {
+	public void postDecode(int color) {
+		if (lastColor != color) {
 			lastColor = color;
 			repeatMultiplier = 1;
 		}
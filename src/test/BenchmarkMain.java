@@ -0,0 +1,194 @@
+package test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.digitalmodular.qoiflow.QoiFlowCodecDescriptor;
+import org.digitalmodular.qoiflow.QoiFlowImageDecoder;
+import org.digitalmodular.qoiflow.QoiFlowImageEncoder;
+import org.digitalmodular.qoiflow.QoiFlowStreamCodec;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionChroma;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionColorHistory;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionDelta;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionMaskRGBA;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionRGBA;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionRunLength;
+
+/**
+ * Throughput benchmark for {@link QoiFlowImageEncoder} and {@link QoiFlowImageDecoder}.
+ * <p>
+ * Unlike {@link TestMain}, this doesn't read files, redraw images or print per image.
+ * All images are generated synthetically (and deterministically) so results are comparable between releases.
+ * Every combination of instruction mix, image class and raster type is measured separately,
+ * and reported in megapixels per second and compressed bytes per pixel.
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-06-27
+public class BenchmarkMain {
+	private static final int WIDTH                  = 1024;
+	private static final int HEIGHT                 = 1024;
+	private static final int WARMUP_ITERATIONS      = 5;
+	private static final int MEASUREMENT_ITERATIONS = 10;
+
+	enum InstructionMix {
+		RLE_HIST_CHROMA_RGBA(() -> Arrays.asList(new QoiFlowInstructionRunLength(),
+		                                         new QoiFlowInstructionColorHistory(),
+		                                         new QoiFlowInstructionChroma(2, 2, 2, 0),
+		                                         new QoiFlowInstructionChroma(2, 2, 2, 2),
+		                                         new QoiFlowInstructionRGBA(8, 8, 8, 8))),
+		RLE_HIST_DELTA_RGBA(() -> Arrays.asList(new QoiFlowInstructionRunLength(),
+		                                        new QoiFlowInstructionColorHistory(),
+		                                        new QoiFlowInstructionDelta(2, 2, 2, 0),
+		                                        new QoiFlowInstructionDelta(2, 2, 2, 2),
+		                                        new QoiFlowInstructionRGBA(8, 8, 8, 8))),
+		RLE_HIST_CHROMA_MASK(() -> Arrays.asList(new QoiFlowInstructionRunLength(),
+		                                         new QoiFlowInstructionColorHistory(),
+		                                         new QoiFlowInstructionChroma(2, 2, 2, 0),
+		                                         new QoiFlowInstructionMaskRGBA(true))),
+		RLE_HIST_DELTA_RGB_MASK(() -> Arrays.asList(new QoiFlowInstructionRunLength(),
+		                                            new QoiFlowInstructionColorHistory(),
+		                                            new QoiFlowInstructionDelta(2, 2, 2, 0),
+		                                            new QoiFlowInstructionRGBA(4, 4, 1, 0),
+		                                            new QoiFlowInstructionMaskRGBA(true)));
+
+		private final Supplier<List<QoiFlowInstruction>> instructionSupplier;
+
+		InstructionMix(Supplier<List<QoiFlowInstruction>> instructionSupplier) {
+			this.instructionSupplier = instructionSupplier;
+		}
+
+		/**
+		 * Instructions take their code offsets from the codec they're in, so every codec needs new instances.
+		 */
+		QoiFlowStreamCodec createCodec() {
+			QoiFlowStreamCodec codec = new QoiFlowStreamCodec(instructionSupplier.get());
+			return codec.withVariableLength(0, codec.getNumVariableCodes() >> 1);
+		}
+	}
+
+	enum ImageClass {
+		PHOTO,
+		PIXEL_ART,
+		ALPHA_HEAVY,
+		GRADIENT
+	}
+
+	enum RasterType {
+		BYTE(BufferedImage.TYPE_4BYTE_ABGR),
+		INT(BufferedImage.TYPE_INT_ARGB);
+
+		private final int imageType;
+
+		RasterType(int imageType) {
+			this.imageType = imageType;
+		}
+	}
+
+	public static void main(String... args) throws IOException {
+		System.out.println("mix                      image       raster  encode MP/s  decode MP/s  bytes/pixel");
+
+		for (InstructionMix mix : InstructionMix.values()) {
+			for (ImageClass imageClass : ImageClass.values()) {
+				for (RasterType rasterType : RasterType.values()) {
+					BufferedImage image = createImage(imageClass, rasterType);
+					benchmark(mix, imageClass, rasterType, image);
+				}
+			}
+		}
+	}
+
+	private static void benchmark(InstructionMix mix, ImageClass imageClass, RasterType rasterType, BufferedImage image)
+			throws IOException {
+		QoiFlowStreamCodec  codec   = mix.createCodec();
+		QoiFlowImageEncoder encoder = new QoiFlowImageEncoder(codec);
+		QoiFlowImageDecoder decoder = new QoiFlowImageDecoder(codec);
+
+		ByteBuffer encoded = null;
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			encoded = encoder.encode(image);
+			encoded.flip();
+			decoder.decode(encoded);
+		}
+
+		long encodeTime = Long.MAX_VALUE;
+		long decodeTime = Long.MAX_VALUE;
+		for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+			long start = System.nanoTime();
+			encoded = encoder.encode(image);
+			encodeTime = Math.min(encodeTime, System.nanoTime() - start);
+
+			encoded.flip();
+			start = System.nanoTime();
+			decoder.decode(encoded);
+			decodeTime = Math.min(decodeTime, System.nanoTime() - start);
+		}
+
+		double numPixels  = WIDTH * HEIGHT;
+		double encodeMPs  = numPixels / encodeTime * 1.0e3;
+		double decodeMPs  = numPixels / decodeTime * 1.0e3;
+		int    headerSize = QoiFlowImageEncoder.FIXED_HEADER_LENGTH + QoiFlowCodecDescriptor.of(codec).size();
+		double bytesPerPx = (encoded.limit() - headerSize) / numPixels;
+
+		System.out.printf("%-24s %-11s %-7s %11.2f  %11.2f  %11.4f%n",
+		                  mix, imageClass, rasterType, encodeMPs, decodeMPs, bytesPerPx);
+	}
+
+	static BufferedImage createImage(ImageClass imageClass, RasterType rasterType) {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, rasterType.imageType);
+		Random        random = new Random(imageClass.ordinal());
+
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				image.setRGB(x, y, createPixel(imageClass, random, x, y));
+			}
+		}
+
+		return image;
+	}
+
+	private static int createPixel(ImageClass imageClass, Random random, int x, int y) {
+		switch (imageClass) {
+			case PHOTO: {
+				// Low-frequency content with sensor-like noise
+				double v = Math.sin(x * 0.013) * Math.cos(y * 0.021) + Math.sin((x + y) * 0.007);
+				int    r = clamp((int)(128 + v * 60) + random.nextInt(7) - 3);
+				int    g = clamp((int)(110 + v * 50) + random.nextInt(7) - 3);
+				int    b = clamp((int)(90 + v * 40) + random.nextInt(7) - 3);
+				return 0xFF000000 | r << 16 | g << 8 | b;
+			}
+			case PIXEL_ART: {
+				// Large flat areas from a small palette
+				int[] palette = {0xFF000000, 0xFF1D2B53, 0xFF7E2553, 0xFF008751, 0xFFAB5236, 0xFFFFF1E8};
+				int   cell    = ((x >> 4) * 31 + (y >> 4) * 17) ^ ((x >> 6) * 7);
+				return palette[Math.floorMod(cell, palette.length)];
+			}
+			case ALPHA_HEAVY: {
+				// Anti-aliased sprites on a transparent background
+				int    dx    = (x & 63) - 32;
+				int    dy    = (y & 63) - 32;
+				double dist  = Math.sqrt(dx * dx + dy * dy);
+				int    alpha = clamp((int)((28 - dist) * 64));
+				return alpha == 0 ? 0 : alpha << 24 | 0x3060C0 + ((x >> 6) * 0x040201 & 0x3F3F3F);
+			}
+			case GRADIENT: {
+				int r = x * 255 / (WIDTH - 1);
+				int g = y * 255 / (HEIGHT - 1);
+				int b = (x + y) * 255 / (WIDTH + HEIGHT - 2);
+				return 0xFF000000 | r << 16 | g << 8 | b;
+			}
+			default:
+				throw new AssertionError("Unknown image class: " + imageClass);
+		}
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+}
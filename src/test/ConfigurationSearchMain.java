@@ -0,0 +1,290 @@
+package test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+import org.digitalmodular.qoiflow.QoiFlowImageDecoder;
+import org.digitalmodular.qoiflow.QoiFlowImageEncoder;
+import org.digitalmodular.qoiflow.QoiFlowStreamCodec;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionChroma;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionColorHistory;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionDelta;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionMaskRGBA;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionRGBA;
+import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionRunLength;
+
+/**
+ * Searches instruction sets for the best trade-offs between compression and speed on a corpus of images.
+ * <p>
+ * Every configuration consists of RLE and color history, up to a number of small instructions from
+ * {@link #SMALL_INSTRUCTIONS}, and one instruction from {@link #FALLBACK_INSTRUCTIONS} that can encode any color.
+ * Configurations that don't fit in the code space are skipped.
+ * <p>
+ * The configurations are evaluated concurrently, each encoding and decoding the entire corpus,
+ * so the speeds are only comparable to each other and not to those reported by {@link BenchmarkMain}.
+ * The result is the Pareto front of bytes per pixel versus encode and decode speed:
+ * every configuration for which no other configuration is at least as good on all three.
+ * <p>
+ * Usage: {@code ConfigurationSearchMain [corpusDirectory [maxSmallInstructions]]}
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-07-02
+public class ConfigurationSearchMain {
+	private static final int DEFAULT_MAX_SMALL_INSTRUCTIONS = 2;
+	private static final int ITERATIONS                     = 3;
+
+	/**
+	 * Candidates for the instructions between color history and the fallback instruction.
+	 * <p>
+	 * Sorted by size, as instructions are tried in order and the first one that can encode a pixel wins.
+	 */
+	private static final List<Supplier<QoiFlowInstruction>> SMALL_INSTRUCTIONS = Arrays.asList(
+			() -> new QoiFlowInstructionDelta(1, 1, 1, 0),
+			() -> new QoiFlowInstructionDelta(2, 2, 2, 0),
+			() -> new QoiFlowInstructionChroma(2, 2, 2, 0),
+			() -> new QoiFlowInstructionDelta(2, 2, 2, 2),
+			() -> new QoiFlowInstructionChroma(2, 2, 2, 2),
+			() -> new QoiFlowInstructionDelta(4, 4, 4, 0),
+			() -> new QoiFlowInstructionChroma(4, 4, 4, 0),
+			() -> new QoiFlowInstructionChroma(6, 5, 5, 0),
+			() -> new QoiFlowInstructionDelta(4, 4, 4, 4),
+			() -> new QoiFlowInstructionChroma(4, 4, 4, 4),
+			() -> new QoiFlowInstructionRGBA(4, 4, 1, 0),
+			() -> new QoiFlowInstructionRGBA(8, 8, 8, 0));
+
+	private static final List<Supplier<QoiFlowInstruction>> FALLBACK_INSTRUCTIONS = Arrays.asList(
+			() -> new QoiFlowInstructionRGBA(8, 8, 8, 8),
+			() -> new QoiFlowInstructionMaskRGBA(true));
+
+	private static final class Result {
+		final String name;
+		final double bytesPerPixel;
+		final double encodeMPs;
+		final double decodeMPs;
+
+		Result(String name, double bytesPerPixel, double encodeMPs, double decodeMPs) {
+			this.name = name;
+			this.bytesPerPixel = bytesPerPixel;
+			this.encodeMPs = encodeMPs;
+			this.decodeMPs = decodeMPs;
+		}
+
+		boolean dominates(Result other) {
+			boolean atLeastAsGood = bytesPerPixel <= other.bytesPerPixel &&
+			                        encodeMPs >= other.encodeMPs &&
+			                        decodeMPs >= other.decodeMPs;
+			boolean better = bytesPerPixel < other.bytesPerPixel ||
+			                 encodeMPs > other.encodeMPs ||
+			                 decodeMPs > other.decodeMPs;
+			return atLeastAsGood && better;
+		}
+	}
+
+	public static void main(String... args) throws IOException {
+		Path corpus               = Paths.get(args.length > 0 ? args[0] : "qoi_test_images");
+		int  maxSmallInstructions = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_SMALL_INSTRUCTIONS;
+
+		List<BufferedImage> images = loadImages(corpus);
+		if (images.isEmpty()) {
+			System.out.println("No images found in " + corpus.toAbsolutePath());
+			return;
+		}
+
+		long numPixels = 0;
+		for (BufferedImage image : images) {
+			numPixels += (long)image.getWidth() * image.getHeight();
+		}
+
+		List<List<Supplier<QoiFlowInstruction>>> configurations = enumerateConfigurations(maxSmallInstructions);
+		System.out.printf("Evaluating %d configurations on %d images (%.2f MP)%n",
+		                  configurations.size(), images.size(), numPixels / 1.0e6);
+
+		// Get the JIT going, so the configurations that happen to be evaluated first aren't penalized.
+		evaluate(configurations.get(0), images, numPixels);
+
+		long         totalPixels = numPixels;
+		List<Result> results     = configurations.parallelStream()
+		                                         .map(configuration -> evaluate(configuration, images, totalPixels))
+		                                         .filter(Objects::nonNull)
+		                                         .collect(Collectors.toList());
+
+		List<Result> front = findParetoFront(results);
+		front.sort(Comparator.comparingDouble(result -> result.bytesPerPixel));
+
+		System.out.println();
+		System.out.println("Pareto front (" + front.size() + " of " + results.size() + " configurations):");
+		System.out.println("bytes/pixel  encode MP/s  decode MP/s  instructions");
+		for (Result result : front) {
+			System.out.printf("%11.4f  %11.2f  %11.2f  %s%n",
+			                  result.bytesPerPixel, result.encodeMPs, result.decodeMPs, result.name);
+		}
+	}
+
+	private static List<BufferedImage> loadImages(Path corpus) throws IOException {
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(corpus)) {
+			files = stream.filter(file -> file.getFileName().toString().endsWith(".png"))
+			              .sorted(Comparator.comparing(Path::getFileName))
+			              .collect(Collectors.toList());
+		}
+
+		List<BufferedImage> images = new ArrayList<>(files.size());
+		for (Path file : files) {
+			BufferedImage image = ImageIO.read(file.toFile());
+			if (image != null) {
+				images.add(image);
+			}
+		}
+
+		return images;
+	}
+
+	/**
+	 * Returns every combination of up to {@code maxSmallInstructions} small instructions (in their original order)
+	 * with every fallback instruction, that fits in the code space.
+	 */
+	private static List<List<Supplier<QoiFlowInstruction>>> enumerateConfigurations(int maxSmallInstructions) {
+		List<List<Supplier<QoiFlowInstruction>>> smallCombinations = new ArrayList<>(1000);
+		addCombinations(smallCombinations, new ArrayList<>(maxSmallInstructions), 0, maxSmallInstructions);
+
+		List<List<Supplier<QoiFlowInstruction>>> configurations = new ArrayList<>(smallCombinations.size() * 2);
+		for (List<Supplier<QoiFlowInstruction>> smallCombination : smallCombinations) {
+			for (Supplier<QoiFlowInstruction> fallback : FALLBACK_INSTRUCTIONS) {
+				List<Supplier<QoiFlowInstruction>> configuration = new ArrayList<>(smallCombination.size() + 3);
+				configuration.add(QoiFlowInstructionRunLength::new);
+				configuration.add(QoiFlowInstructionColorHistory::new);
+				configuration.addAll(smallCombination);
+				configuration.add(fallback);
+
+				try {
+					createCodec(configuration);
+					configurations.add(configuration);
+				} catch (IllegalArgumentException ignored) {
+					// Doesn't fit in the code space
+				}
+			}
+		}
+
+		return configurations;
+	}
+
+	private static void addCombinations(List<List<Supplier<QoiFlowInstruction>>> combinations,
+	                                    List<Supplier<QoiFlowInstruction>> current,
+	                                    int start,
+	                                    int remaining) {
+		combinations.add(new ArrayList<>(current));
+		if (remaining == 0) {
+			return;
+		}
+
+		for (int i = start; i < SMALL_INSTRUCTIONS.size(); i++) {
+			current.add(SMALL_INSTRUCTIONS.get(i));
+			addCombinations(combinations, current, i + 1, remaining - 1);
+			current.remove(current.size() - 1);
+		}
+	}
+
+	private static QoiFlowStreamCodec createCodec(List<Supplier<QoiFlowInstruction>> configuration) {
+		List<QoiFlowInstruction> instructions = new ArrayList<>(configuration.size());
+		for (Supplier<QoiFlowInstruction> supplier : configuration) {
+			instructions.add(supplier.get());
+		}
+
+		QoiFlowStreamCodec codec = new QoiFlowStreamCodec(instructions);
+		return codec.withVariableLength(0, codec.getNumVariableCodes() >> 1);
+	}
+
+	/**
+	 * @return The result, or {@code null} if any image didn't survive the round-trip.
+	 */
+	private static Result evaluate(List<Supplier<QoiFlowInstruction>> configuration,
+	                               List<BufferedImage> images,
+	                               long numPixels) {
+		QoiFlowStreamCodec  codec   = createCodec(configuration);
+		QoiFlowImageEncoder encoder = new QoiFlowImageEncoder(codec);
+		QoiFlowImageDecoder decoder = new QoiFlowImageDecoder(codec);
+		String              name    = codec.instructions().stream()
+		                                   .map(Object::toString)
+		                                   .collect(Collectors.joining(" "));
+
+		long numBytes    = 0;
+		long encodeNanos = 0;
+		long decodeNanos = 0;
+		for (BufferedImage image : images) {
+			byte[]        encoded    = null;
+			BufferedImage decoded    = null;
+			long          encodeTime = Long.MAX_VALUE;
+			long          decodeTime = Long.MAX_VALUE;
+			for (int i = 0; i < ITERATIONS; i++) {
+				long start = System.nanoTime();
+				encoded = encoder.encodeToByteArray(image);
+				encodeTime = Math.min(encodeTime, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				try {
+					decoded = decoder.decode(ByteBuffer.wrap(encoded));
+				} catch (IOException ex) {
+					System.out.println(name + ": " + ex);
+					return null;
+				}
+				decodeTime = Math.min(decodeTime, System.nanoTime() - start);
+			}
+
+			if (!imagesEqual(image, decoded)) {
+				System.out.println(name + ": Round-trip mismatch");
+				return null;
+			}
+
+			numBytes += encoded.length;
+			encodeNanos += encodeTime;
+			decodeNanos += decodeTime;
+		}
+
+		return new Result(name,
+		                  (double)numBytes / numPixels,
+		                  numPixels / (double)encodeNanos * 1.0e3,
+		                  numPixels / (double)decodeNanos * 1.0e3);
+	}
+
+	private static boolean imagesEqual(BufferedImage image1, BufferedImage image2) {
+		int   width   = image1.getWidth();
+		int   height  = image1.getHeight();
+		int[] pixels1 = image1.getRGB(0, 0, width, height, null, 0, width);
+		int[] pixels2 = image2.getRGB(0, 0, width, height, null, 0, width);
+		return Arrays.equals(pixels1, pixels2);
+	}
+
+	private static List<Result> findParetoFront(List<Result> results) {
+		List<Result> front = new ArrayList<>(results.size());
+		for (Result result : results) {
+			boolean dominated = false;
+			for (Result other : results) {
+				if (other.dominates(result)) {
+					dominated = true;
+					break;
+				}
+			}
+
+			if (!dominated) {
+				front.add(result);
+			}
+		}
+
+		return front;
+	}
+}
@@ -26,6 +26,7 @@ import org.digitalmodular.qoiflow.QoiFlowImageDecoder;
 import org.digitalmodular.qoiflow.QoiFlowImageEncoder;
 import org.digitalmodular.qoiflow.QoiFlowStatistics;
 import org.digitalmodular.qoiflow.QoiFlowStreamCodec;
+import org.digitalmodular.qoiflow.QoiFlowVariableLengthTuner;
 import org.digitalmodular.qoiflow.instruction.QoiFlowInstruction;
 import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionChroma;
 import org.digitalmodular.qoiflow.instruction.QoiFlowInstructionColorHistory;
@@ -55,16 +56,26 @@ public class TestMain {
 
 	static final List<Path> files = new ArrayList<>(20000);
 
-	static               QoiFlowStreamCodec codec;
-	private static final QoiFlowStatistics  allStatistics = new QoiFlowStatistics();
+	static               QoiFlowStreamCodec  codec;
+	static               QoiFlowImageEncoder encoder;
+	private static final QoiFlowStatistics   allStatistics = new QoiFlowStatistics();
 
 	static {
-		codec = new QoiFlowStreamCodec(Arrays.asList(rle, hist, chroma6, chroma8, rgba8888));
-		codec.setVariableLength(0, codec.getNumVariableCodes() >> 1);
+		QoiFlowStreamCodec defaultCodec = new QoiFlowStreamCodec(Arrays.asList(rle, hist, chroma6, chroma8, rgba8888));
+		codec = defaultCodec.withVariableLength(0, defaultCodec.getNumVariableCodes() >> 1);
 		codec.printCodeOffsets();
+		encoder = new QoiFlowImageEncoder(codec);
 	}
 
+	/**
+	 * @param args Pass {@code --tune} to tune the variable lengths for every image.
+	 *             Statistics then describe the tuned copies of the codec, not {@link #codec} itself.
+	 */
 	public static void main(String... args) throws IOException {
+		if (Arrays.asList(args).contains("--tune")) {
+			encoder = new QoiFlowImageEncoder(codec, new QoiFlowVariableLengthTuner());
+		}
+
 //		collectImageFilesRecursively(files, Paths.get("qoi_test_images"));
 		collectImageFilesRecursively(files, Paths.get("images-pixelart-tiles"));
 //		collectImageFilesRecursively(files, Paths.get("images-lance"));
@@ -110,7 +121,7 @@ public class TestMain {
 		}
 
 		try {
-			ByteBuffer qoiData = new QoiFlowImageEncoder(codec).encode(image);
+			ByteBuffer qoiData = encoder.encode(image);
 
 			if (codec.getStatistics() != null) {
 				codec.getStatistics().reset();
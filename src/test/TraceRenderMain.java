@@ -0,0 +1,34 @@
+package test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.digitalmodular.qoiflow.QoiFlowTraceRecorder;
+import org.digitalmodular.qoiflow.QoiFlowTraceRenderer;
+
+/**
+ * Prints a trace written by {@link QoiFlowTraceRecorder}.
+ * <p>
+ * Usage: {@code TraceRenderMain <trace file> [encoded stream files...]}
+ *
+ * @author Mark Jeronimus
+ */
+// Created 2022-07-02
+public class TraceRenderMain {
+	public static void main(String... args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: TraceRenderMain <trace file> [encoded stream files...]");
+			System.exit(1);
+		}
+
+		List<Path> streamFiles = new ArrayList<>(args.length - 1);
+		for (int i = 1; i < args.length; i++) {
+			streamFiles.add(Paths.get(args[i]));
+		}
+
+		QoiFlowTraceRenderer.render(Paths.get(args[0]), streamFiles, System.out);
+	}
+}